@@ -1,17 +1,25 @@
 package ascii_art;
 
+import ascii_art.RenderStats.Stage;
+import ascii_output.ColorRowAsciiOutput;
+import ascii_output.RowAsciiOutput;
 import image.Image;
 import image.ImageProcess;
 import image_char_matching.SubImgCharMatcher;
 
-import java.awt.*;
-import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class represents an algorithm for generating ASCII art from an image.
  */
 public class AsciiArtAlgorithm {
 
+    /**
+     * The largest number of output rows a single parallel task renders without splitting.
+     */
+    private static final int ROWS_PER_BAND = 8;
     /**
      * The image to be converted to ASCII art.
      */
@@ -24,19 +32,65 @@ public class AsciiArtAlgorithm {
      * The matcher used to map image brightness to ASCII characters.
      */
     private final SubImgCharMatcher asciiChars;
+    /**
+     * The pool that renders row bands in parallel, or null to render serially.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * The context whose scratch space serial renders reuse, or null to render serially
+     * into the result directly.
+     */
+    private final RenderContext context;
+    /**
+     * The times of the stages of the bands rendered so far, or null if they are not measured.
+     */
+    private StageTimes stageTimes;
 
     /**
-     * Constructs an instance of AsciiArtAlgorithm.
+     * Constructs an instance of AsciiArtAlgorithm that renders serially.
      *
      * @param img The image to be converted to ASCII art.
      * @param resolution The resolution of the ASCII art (number of characters per pixel).
      * @param asciiChars The matcher used to map image brightness to ASCII characters.
      */
     public AsciiArtAlgorithm(ImageProcess img, int resolution,SubImgCharMatcher asciiChars) {
+        this(img, resolution, asciiChars, null);
+    }
+
+    /**
+     * Constructs an instance of AsciiArtAlgorithm.
+     *
+     * @param img The image to be converted to ASCII art.
+     * @param resolution The resolution of the ASCII art (number of characters per pixel).
+     * @param asciiChars The matcher used to map image brightness to ASCII characters.
+     * @param pool The pool that renders row bands in parallel, or null to render serially.
+     */
+    public AsciiArtAlgorithm(ImageProcess img, int resolution, SubImgCharMatcher asciiChars,
+                             ForkJoinPool pool) {
+        this(img, resolution, asciiChars, pool, null);
+    }
 
+    /**
+     * Constructs an instance of AsciiArtAlgorithm whose serial renders go through a
+     * render context, so repeated renders reuse its buffers and allocate little beyond
+     * their result. The context is reset to this image, resolution and matcher.
+     *
+     * @param img The image to be converted to ASCII art.
+     * @param resolution The resolution of the ASCII art (number of characters per pixel).
+     * @param asciiChars The matcher used to map image brightness to ASCII characters.
+     * @param pool The pool that renders row bands in parallel, or null to render serially.
+     * @param context The context of serial renders, or null to render without one.
+     */
+    public AsciiArtAlgorithm(ImageProcess img, int resolution, SubImgCharMatcher asciiChars,
+                             ForkJoinPool pool, RenderContext context) {
         this.imageProcess = img;
         this.resolution = resolution;
         this.asciiChars = asciiChars;
+        this.pool = pool;
+        this.context = pool == null ? context : null;
+        if (this.context != null) {
+            this.context.reset(img, resolution, asciiChars);
+        }
     }
 
     /**
@@ -45,20 +99,237 @@ public class AsciiArtAlgorithm {
      * @return A 2D array of characters representing the ASCII art.
      */
     public char[][] run() {
-        ArrayList<Color[][]> arraySubIm = imageProcess.makeSubImages(this.resolution);
+        return runInto(new char[imageProcess.getSubImageRows(this.resolution)][this.resolution]);
+    }
+
+    /**
+     * Runs the ASCII art algorithm into an array owned by the caller. Streams of frames
+     * that render serially can use a RenderContext instead, which also owns the rest of
+     * the scratch space.
+     *
+     * @param returnChars The array that receives the ASCII art, with one row of
+     *                    resolution characters per row of sub-images.
+     * @return The given array.
+     */
+    public char[][] runInto(char[][] returnChars) {
+        if (pool == null) {
+            renderSerially(returnChars, 0, returnChars.length);
+        } else {
+            pool.invoke(new BandTask(returnChars, 0, returnChars.length));
+        }
+        return returnChars;
+    }
+
+    /**
+     * Runs the ASCII art algorithm, handing each row to an output as soon as it and all
+     * rows above it are complete. In parallel mode, rows are rendered in chunks of
+     * bands, so the first rows can be written while later ones are still pending.
+     * If the image keeps its color and the output can show it, each row is output with
+     * the average color of its sub-images.
+     *
+     * @param sink The output that receives the rows, in order.
+     * @return A 2D array of characters representing the ASCII art.
+     */
+    public char[][] run(RowAsciiOutput sink) {
         char[][] returnChars =
-                new char[imageProcess.getNewWidth()/
-                        (imageProcess.getNewHeight()/this.resolution)][this.resolution];
-        int m = 0;
-        for (int i = 0; i < returnChars.length; i++) {
-            for (int j = 0; j < returnChars[0].length; j++) {
-                double brightness = imageProcess.calcSubImgBrightness(arraySubIm.get(m));
-                m++;
-                char c = asciiChars.getCharByImageBrightness(brightness);
-                returnChars[i][j] = c;
+                new char[imageProcess.getSubImageRows(this.resolution)][this.resolution];
+        int chunk = pool == null ? 1 : pool.getParallelism() * ROWS_PER_BAND;
+        ColorRowAsciiOutput colorSink = imageProcess.isColorEnabled() && sink instanceof ColorRowAsciiOutput ?
+                (ColorRowAsciiOutput) sink : null;
+        int[] colors = colorSink == null || context != null ? null : new int[this.resolution];
+        try {
+            sink.begin(returnChars.length, this.resolution);
+            for (int fromRow = 0; fromRow < returnChars.length; fromRow += chunk) {
+                int toRow = Math.min(fromRow + chunk, returnChars.length);
+                if (pool == null) {
+                    renderSerially(returnChars, fromRow, toRow);
+                } else {
+                    pool.invoke(new BandTask(returnChars, fromRow, toRow));
+                }
+                for (int i = fromRow; i < toRow; i++) {
+                    if (colorSink != null && context != null) {
+                        // The context filled in the colors as it rendered the rows.
+                        colorSink.row(returnChars[i], context.getColors(), i * this.resolution);
+                    } else if (colorSink != null) {
+                        imageProcess.calcRowColors(this.resolution, i, colors, 0);
+                        colorSink.row(returnChars[i], colors, 0);
+                    } else {
+                        sink.row(returnChars[i]);
+                    }
+                }
             }
+            sink.end();
+        } finally {
+            sink.close();
         }
         return returnChars;
     }
 
+    /**
+     * Measures the brightness and matching stages of the following renders. Each band is
+     * rendered as usual, serially or on the pool, but the brightness of its rows is filled
+     * and timed on its own first, on the thread that renders the band. Structural
+     * matching reads no brightness, so all of its time is matching.
+     */
+    public void measureStages() {
+        if (!asciiChars.isStructural()) {
+            stageTimes = new StageTimes(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Adds the brightness and matching stages of the renders since measureStages() to a
+     * measurement. The time of the bands is summed across the threads that rendered them,
+     * and the wall time of the renders is split between the two stages in the same
+     * proportion. Allocations are those of the calling thread, as in the rest of the
+     * measurement.
+     *
+     * @param stats The measurement of the render.
+     * @param renderNanos The wall time of the renders, without their output.
+     * @param renderBytes The bytes the calling thread allocated in the renders, without
+     *                    their output.
+     */
+    public void addStages(RenderStats stats, long renderNanos, long renderBytes) {
+        long brightnessNanos = 0;
+        long brightnessBytes = 0;
+        if (stageTimes != null) {
+            long bandNanos = stageTimes.bandNanos.sum();
+            if (bandNanos > 0) {
+                brightnessNanos = (long) ((double) renderNanos * stageTimes.brightnessNanos.sum() / bandNanos);
+            }
+            brightnessBytes = stageTimes.brightnessBytes.sum();
+            stats.add(Stage.BRIGHTNESS, brightnessNanos, brightnessBytes);
+        }
+        stats.add(Stage.MATCH, renderNanos - brightnessNanos, renderBytes - brightnessBytes);
+    }
+
+    /**
+     * Renders a band of output rows into the result array on this thread, through the
+     * render context if there is one.
+     *
+     * @param returnChars The result array.
+     * @param fromRow The first row of the band (inclusive).
+     * @param toRow The last row of the band (exclusive).
+     */
+    private void renderSerially(char[][] returnChars, int fromRow, int toRow) {
+        long start = stageTimes == null ? 0 : stageTimes.fillBrightness(fromRow, toRow);
+        if (context == null) {
+            renderRows(returnChars, fromRow, toRow);
+        } else {
+            context.renderRows(fromRow, toRow);
+            char[] chars = context.getChars();
+            int stride = context.getStride();
+            for (int i = fromRow; i < toRow; i++) {
+                System.arraycopy(chars, i * stride, returnChars[i], 0, this.resolution);
+            }
+        }
+        if (stageTimes != null) {
+            stageTimes.endBand(start);
+        }
+    }
+
+    /**
+     * Renders a band of output rows into the result array, matching each sub-image by its
+     * brightness, or by its shape when the matcher is in structural mode.
+     *
+     * @param returnChars The result array.
+     * @param fromRow The first row of the band (inclusive).
+     * @param toRow The last row of the band (exclusive).
+     */
+    private void renderRows(char[][] returnChars, int fromRow, int toRow) {
+        if (asciiChars.isStructural()) {
+            int size = imageProcess.getSubImageSize(this.resolution);
+            int grid = SubImgCharMatcher.SHAPE_GRID;
+            double[] cells = new double[grid * grid];
+            for (int i = fromRow; i < toRow; i++) {
+                for (int j = 0; j < this.resolution; j++) {
+                    imageProcess.calcSubImgCells(i * size, j * size, size, grid, cells);
+                    returnChars[i][j] = asciiChars.getCharByImageCells(cells);
+                }
+            }
+            return;
+        }
+        double[] level = imageProcess.getBrightnessRows(this.resolution, fromRow, toRow);
+        for (int i = fromRow; i < toRow; i++) {
+            asciiChars.getCharsByImageBrightness(level, i * this.resolution, returnChars[i], 0, this.resolution);
+        }
+    }
+
+    /**
+     * A fork/join task that splits a band of output rows until it is small enough to render.
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final char[][] returnChars;
+        private final int fromRow;
+        private final int toRow;
+
+        BandTask(char[][] returnChars, int fromRow, int toRow) {
+            this.returnChars = returnChars;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= ROWS_PER_BAND) {
+                long start = stageTimes == null ? 0 : stageTimes.fillBrightness(fromRow, toRow);
+                renderRows(returnChars, fromRow, toRow);
+                if (stageTimes != null) {
+                    stageTimes.endBand(start);
+                }
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new BandTask(returnChars, fromRow, middle),
+                    new BandTask(returnChars, middle, toRow));
+        }
+    }
+
+    /**
+     * The times of the stages of the bands, summed across the threads that render them.
+     */
+    private final class StageTimes {
+        /**
+         * The thread whose allocations are counted.
+         */
+        private final Thread thread;
+        private final LongAdder bandNanos = new LongAdder();
+        private final LongAdder brightnessNanos = new LongAdder();
+        private final LongAdder brightnessBytes = new LongAdder();
+
+        StageTimes(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Starts a band by filling the brightness of its rows, which matching then reads
+         * from the cache of the image.
+         *
+         * @param fromRow The first row of the band (inclusive).
+         * @param toRow The last row of the band (exclusive).
+         * @return The System.nanoTime() at the start of the band.
+         */
+        long fillBrightness(int fromRow, int toRow) {
+            boolean counted = Thread.currentThread() == thread;
+            long startBytes = counted ? RenderStats.allocatedBytes() : 0;
+            long start = System.nanoTime();
+            imageProcess.getBrightnessRows(resolution, fromRow, toRow);
+            brightnessNanos.add(System.nanoTime() - start);
+            if (counted) {
+                brightnessBytes.add(RenderStats.allocatedBytes() - startBytes);
+            }
+            return start;
+        }
+
+        /**
+         * Ends a band.
+         *
+         * @param start The System.nanoTime() at the start of the band.
+         */
+        void endBand(long start) {
+            bandNanos.add(System.nanoTime() - start);
+        }
+    }
+
 }
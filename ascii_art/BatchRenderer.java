@@ -0,0 +1,544 @@
+package ascii_art;
+
+import ascii_output.StreamingHtmlAsciiOutput;
+import image.Image;
+import image.ImageProcess;
+import image.StreamingImageProcess;
+import image.TileGrid;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders every image of a directory, or every file matching a glob, to ASCII art files
+ * without user interaction; a.png is rendered to a.png.txt or a.png.html.
+ * The work runs as a pipeline of four stages: decoding, sub-image brightness reduction,
+ * character matching and output. Each stage has its own worker threads, and stages are
+ * connected by bounded queues, so decoding overlaps with the CPU-bound stages and a slow
+ * stage holds back the ones before it instead of letting images pile up in memory.
+ * Usage: batch --input DIR|GLOB [--output DIR] [--res N] [--add SPEC]... [--format txt|html]
+ * [--color on|off] [--stream on|off] [--decode-workers N] [--reduce-workers N]
+ * [--match-workers N] [--output-workers N] [--queue N] [--max-error E]
+ * where SPEC is an argument of the shell's add command, such as all, space, a or a-z,
+ * --color on writes HTML in the colors of the image, and --stream on reduces each image
+ * while it is decoded, without holding its pixels in memory, for images too large for it;
+ * the decoding stage then only reads the image headers. --max-error E decodes every
+ * n-th pixel of large images, keeping about 0.5/E by 0.5/E samples per character; see
+ * Image(String, int, double).
+ */
+public class BatchRenderer {
+
+    /**
+     * The default charset, as in the shell.
+     */
+    private static final char[] DEFAULT_CHARS = {'0','1','2','3','4','5','6','7','8','9'};
+    /**
+     * The font of the HTML output, as in the shell.
+     */
+    private static final String FONT_NAME = "Courier New";
+    /**
+     * The marker that ends the input of a stage.
+     */
+    private static final Job END = new Job(null);
+
+    private String input;
+    private String outputDir = ".";
+    private int resolution = Shell.DEFAULT_RESOLUTION;
+    private final List<String> addSpecs = new ArrayList<>();
+    private String format = "txt";
+    private boolean color;
+    private boolean stream;
+    private int decodeWorkers = 2;
+    private int reduceWorkers = Runtime.getRuntime().availableProcessors();
+    private int matchWorkers = Runtime.getRuntime().availableProcessors();
+    private int outputWorkers = 1;
+    private int queueCapacity = 4;
+    private double maxError = 0;
+    /**
+     * The matcher shared by all matching workers.
+     */
+    private SubImgCharMatcher charsSet;
+    /**
+     * The number of images written.
+     */
+    private final AtomicInteger rendered = new AtomicInteger();
+    /**
+     * The number of images that failed.
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+    /**
+     * The Error that killed a worker, if any; the batch is then aborted.
+     */
+    private final AtomicReference<Error> fatal = new AtomicReference<>();
+    /**
+     * The thread that feeds the pipeline and waits for it, interrupted when a worker dies.
+     */
+    private Thread mainThread;
+
+    /**
+     * An image as it moves through the pipeline. Each stage fills in its result and
+     * drops what the next stages do not need.
+     */
+    private static final class Job {
+        private final Path path;
+        private Image image;
+        private StreamingImageProcess streamingImage;
+        private double[] brightness;
+        private int[] colors;
+        private int rows;
+        private char[][] chars;
+
+        Job(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * The work of one stage on one job.
+     */
+    @FunctionalInterface
+    private interface StageWork {
+        /**
+         * Processes a job.
+         *
+         * @param job The job.
+         * @throws IOException If the job reads or writes a file and fails.
+         */
+        void process(Job job) throws IOException;
+    }
+
+    /**
+     * Runs the batch renderer.
+     *
+     * @param args The command-line options.
+     * @throws IOException If the input cannot be listed.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BatchRenderer renderer = new BatchRenderer();
+        renderer.parseArgs(args);
+        renderer.run();
+    }
+
+    /**
+     * Parses the command-line options.
+     *
+     * @param args The command-line options.
+     */
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IncorrectFormatException("Missing value of " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--input": input = value; break;
+                case "--output": outputDir = value; break;
+                case "--res": resolution = parseInt(args[i], value); break;
+                case "--add": addSpecs.add(value); break;
+                case "--format": format = value; break;
+                case "--color":
+                    if (!value.equals("on") && !value.equals("off")) {
+                        throw new IncorrectFormatException("Unknown color mode " + value);
+                    }
+                    color = value.equals("on");
+                    break;
+                case "--stream":
+                    if (!value.equals("on") && !value.equals("off")) {
+                        throw new IncorrectFormatException("Unknown stream mode " + value);
+                    }
+                    stream = value.equals("on");
+                    break;
+                case "--decode-workers": decodeWorkers = parseInt(args[i], value); break;
+                case "--reduce-workers": reduceWorkers = parseInt(args[i], value); break;
+                case "--match-workers": matchWorkers = parseInt(args[i], value); break;
+                case "--output-workers": outputWorkers = parseInt(args[i], value); break;
+                case "--queue": queueCapacity = parseInt(args[i], value); break;
+                case "--max-error": maxError = parseDouble(args[i], value); break;
+                default:
+                    throw new IncorrectFormatException("Unknown option " + args[i]);
+            }
+        }
+        if (input == null) {
+            throw new IncorrectFormatException("Missing --input.");
+        }
+        if (!format.equals("txt") && !format.equals("html")) {
+            throw new IncorrectFormatException("Unknown format " + format);
+        }
+        if (decodeWorkers < 1 || reduceWorkers < 1 || matchWorkers < 1 || outputWorkers < 1) {
+            throw new IncorrectFormatException("Every stage needs at least 1 worker.");
+        }
+        if (resolution < 1) {
+            throw new IncorrectFormatException("--res must be at least 1.");
+        }
+        if (queueCapacity < 1) {
+            throw new IncorrectFormatException("--queue must be at least 1.");
+        }
+        if (!(maxError >= 0) || Double.isInfinite(maxError)) {
+            throw new IncorrectFormatException("--max-error must be finite and not negative.");
+        }
+        if (stream && (color || maxError > 0)) {
+            throw new IncorrectFormatException("--stream on does not support --color on or --max-error.");
+        }
+    }
+
+    /**
+     * Parses the integer value of a command-line option.
+     *
+     * @param option The option.
+     * @param value The value.
+     * @return The integer.
+     * @throws IncorrectFormatException If the value is not an integer.
+     */
+    static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IncorrectFormatException("The value of " + option + " is not an integer: " + value);
+        }
+    }
+
+    /**
+     * Parses the numeric value of a command-line option.
+     *
+     * @param option The option.
+     * @param value The value.
+     * @return The number.
+     * @throws IncorrectFormatException If the value is not a number.
+     */
+    static double parseDouble(String option, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IncorrectFormatException("The value of " + option + " is not a number: " + value);
+        }
+    }
+
+    /**
+     * Renders every input image through the pipeline and waits for it to drain.
+     *
+     * @throws IOException If the input cannot be listed.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    private void run() throws IOException, InterruptedException {
+        charsSet = new SubImgCharMatcher(DEFAULT_CHARS);
+        for (String spec : addSpecs) {
+            addChars(charsSet, spec);
+        }
+        // Build the matcher's index once, before the workers share it.
+        charsSet.getCharByImageBrightness(0);
+        Files.createDirectories(Paths.get(outputDir));
+
+        BlockingQueue<Job> toDecode = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> toReduce = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> toMatch = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Job> toOutput = new ArrayBlockingQueue<>(queueCapacity);
+        List<Thread> threads = new ArrayList<>();
+        startStage("decode", decodeWorkers, toDecode, toReduce, reduceWorkers, this::decode, threads);
+        startStage("reduce", reduceWorkers, toReduce, toMatch, matchWorkers, this::reduce, threads);
+        startStage("match", matchWorkers, toMatch, toOutput, outputWorkers, this::match, threads);
+        startStage("output", outputWorkers, toOutput, null, 0, this::write, threads);
+
+        mainThread = Thread.currentThread();
+        long start = System.nanoTime();
+        try {
+            for (Path path : listInput(input)) {
+                toDecode.put(new Job(path));
+            }
+            for (int i = 0; i < decodeWorkers; i++) {
+                toDecode.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            if (fatal.get() == null) {
+                throw e;
+            }
+            // A worker died; stop the others, which may be blocked on its queues.
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        if (fatal.get() != null) {
+            throw fatal.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Rendered %d images (%d failed) in %.2f s.%n",
+                rendered.get(), failed.get(), seconds);
+    }
+
+    /**
+     * Starts the workers of one stage. Each worker takes jobs from its input queue until
+     * it takes an end marker; the last worker of the stage to finish, normally or not,
+     * passes one end marker to each worker of the next stage. A worker that dies of an
+     * Error aborts the whole batch, since its stage may no longer drain its queue.
+     *
+     * @param name The name of the stage, used for its threads.
+     * @param workers The number of workers of the stage.
+     * @param in The input queue of the stage.
+     * @param out The input queue of the next stage, or null for the last stage.
+     * @param nextWorkers The number of workers of the next stage.
+     * @param work The work of the stage on one job.
+     * @param threads The list to add the started threads to.
+     */
+    private void startStage(String name, int workers, BlockingQueue<Job> in, BlockingQueue<Job> out,
+                            int nextWorkers, StageWork work, List<Thread> threads) {
+        AtomicInteger running = new AtomicInteger(workers);
+        for (int w = 0; w < workers; w++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (Job job = in.take(); job != END; job = in.take()) {
+                        try {
+                            work.process(job);
+                        } catch (IOException | RuntimeException e) {
+                            failed.incrementAndGet();
+                            System.err.println(job.path + ": " + e.getMessage());
+                            continue;
+                        }
+                        if (out != null) {
+                            out.put(job);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Error e) {
+                    if (fatal.compareAndSet(null, e)) {
+                        mainThread.interrupt();
+                    }
+                } finally {
+                    if (running.decrementAndGet() == 0 && out != null) {
+                        endStage(out, nextWorkers);
+                    }
+                }
+            }, name + "-" + w);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Passes one end marker to each worker of a stage.
+     *
+     * @param in The input queue of the stage.
+     * @param workers The number of workers of the stage.
+     */
+    private static void endStage(BlockingQueue<Job> in, int workers) {
+        try {
+            for (int i = 0; i < workers; i++) {
+                in.put(END);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Decodes the image of a job, or only reads its header when streaming.
+     *
+     * @param job The job.
+     * @throws IOException If the image cannot be read.
+     */
+    private void decode(Job job) throws IOException {
+        String filename = job.path.toString();
+        if (stream) {
+            job.streamingImage = new StreamingImageProcess(filename);
+            return;
+        }
+        job.image = maxError > 0 ? new Image(filename, resolution, maxError) : new Image(filename);
+    }
+
+    /**
+     * Reduces the image of a job to the brightness of its sub-images.
+     *
+     * @param job The job.
+     * @throws IOException If a streamed image cannot be read.
+     */
+    private void reduce(Job job) throws IOException {
+        if (job.streamingImage != null) {
+            reduceStreaming(job);
+            return;
+        }
+        if (!TileGrid.fits(job.image.getWidth(), job.image.getHeight(), resolution)) {
+            throw new IllegalCommandException("Resolution exceeds the image width or height.");
+        }
+        ImageProcess imageProcess = new ImageProcess(job.image, color);
+        job.image = null;
+        job.rows = imageProcess.getSubImageRows(resolution);
+        if (color) {
+            job.colors = new int[job.rows * resolution];
+            for (int i = 0; i < job.rows; i++) {
+                imageProcess.calcRowColors(resolution, i, job.colors, i * resolution);
+            }
+        }
+        double[] brightness = new double[job.rows * resolution];
+        imageProcess.forEachSubImage(resolution, 0, job.rows,
+                (i, j, value) -> brightness[i * resolution + j] = value);
+        job.brightness = brightness;
+    }
+
+    /**
+     * Reduces the image file of a job to the brightness of its sub-images while decoding
+     * it.
+     *
+     * @param job The job.
+     * @throws IOException If the image cannot be read.
+     */
+    private void reduceStreaming(Job job) throws IOException {
+        StreamingImageProcess imageProcess = job.streamingImage;
+        // The padded dimensions fit the same resolutions as the image itself.
+        if (!TileGrid.fits(imageProcess.getNewWidth(), imageProcess.getNewHeight(), resolution)) {
+            throw new IllegalCommandException("Resolution exceeds the image width or height.");
+        }
+        job.streamingImage = null;
+        job.rows = imageProcess.getSubImageRows(resolution);
+        double[] brightness = new double[job.rows * resolution];
+        imageProcess.forEachSubImage(resolution, (i, j, value) -> brightness[i * resolution + j] = value);
+        job.brightness = brightness;
+    }
+
+    /**
+     * Matches the sub-image brightness of a job to characters.
+     *
+     * @param job The job.
+     */
+    private void match(Job job) {
+        char[][] chars = new char[job.rows][resolution];
+        for (int i = 0; i < job.rows; i++) {
+            for (int j = 0; j < resolution; j++) {
+                chars[i][j] = charsSet.getCharByImageBrightness(job.brightness[i * resolution + j]);
+            }
+        }
+        job.brightness = null;
+        job.chars = chars;
+    }
+
+    /**
+     * Writes the ASCII art of a job to the output directory, named after the whole name
+     * of the image file, so a.jpg and a.png are written to a.jpg.txt and a.png.txt.
+     *
+     * @param job The job.
+     * @throws IOException If the output file cannot be written.
+     */
+    private void write(Job job) throws IOException {
+        String name = job.path.getFileName().toString();
+        writeArt(Paths.get(outputDir, name + "." + format), job.chars, job.colors, format);
+        rendered.incrementAndGet();
+    }
+
+    /**
+     * Writes ASCII art to a file, as plain text or as an HTML page.
+     *
+     * @param target The file.
+     * @param chars The ASCII art.
+     * @param format "txt" or "html".
+     * @throws IOException If the file cannot be written.
+     */
+    static void writeArt(Path target, char[][] chars, String format) throws IOException {
+        writeArt(target, chars, null, format);
+    }
+
+    /**
+     * Writes ASCII art to a file, as plain text or as an HTML page, in color if colors
+     * are given and the format is HTML.
+     *
+     * @param target The file.
+     * @param chars The ASCII art.
+     * @param colors The color of each character, packed as RGB in row-major order, or
+     *               null for no color.
+     * @param format "txt" or "html".
+     * @throws IOException If the file cannot be written.
+     */
+    static void writeArt(Path target, char[][] chars, int[] colors, String format) throws IOException {
+        if (format.equals("html")) {
+            try {
+                StreamingHtmlAsciiOutput html = new StreamingHtmlAsciiOutput(target.toString(), FONT_NAME);
+                if (colors == null) {
+                    html.out(chars);
+                } else {
+                    int cols = chars.length == 0 ? 0 : chars[0].length;
+                    try {
+                        html.begin(chars.length, cols);
+                        for (int i = 0; i < chars.length; i++) {
+                            html.row(chars[i], colors, i * cols);
+                        }
+                        html.end();
+                    } finally {
+                        html.close();
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+                for (char[] row : chars) {
+                    writer.write(row);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the input images: the regular files of the input directory, or the files
+     * whose name matches the input glob.
+     *
+     * @param input The input directory or glob.
+     * @return The paths of the input images, sorted.
+     * @throws IOException If the directory cannot be listed.
+     */
+    static List<Path> listInput(String input) throws IOException {
+        Path inputPath = Paths.get(input);
+        Path directory;
+        PathMatcher matcher;
+        if (Files.isDirectory(inputPath)) {
+            directory = inputPath;
+            matcher = path -> true;
+        } else {
+            directory = inputPath.toAbsolutePath().getParent();
+            matcher = directory.getFileSystem()
+                    .getPathMatcher("glob:" + inputPath.getFileName().toString());
+        }
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path) && matcher.matches(path.getFileName())) {
+                    paths.add(path);
+                }
+            }
+        }
+        paths.sort(null);
+        return paths;
+    }
+
+    /**
+     * Adds characters to a charset, with the syntax of the shell's add command; see
+     * SubImgCharMatcher.parseCharSpec.
+     *
+     * @param charsSet The charset.
+     * @param spec all, space, a single character, or a range such as a-z.
+     */
+    static void addChars(SubImgCharMatcher charsSet, String spec) {
+        if (!charsSet.addChars(spec)) {
+            throw new IncorrectFormatException("Did not add due to incorrect format.");
+        }
+    }
+}
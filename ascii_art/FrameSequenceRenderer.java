@@ -0,0 +1,504 @@
+package ascii_art;
+
+import image.Image;
+import image.TileGrid;
+import image_char_matching.SubImgCharMatcher;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders an animation to numbered ASCII art frames: the frames of an animated GIF, the
+ * images of any other multi-image file, or the images of a directory or glob in name order.
+ * GIF frames are composited onto the logical screen as their disposal methods require.
+ * Each frame is compared with the previous one tile by tile, only inside its dirty
+ * rectangle: the region the GIF frame draws or the previous frame disposed of, or the
+ * whole frame for other inputs. Only tiles whose pixels changed are matched again; the
+ * others keep the characters of the previous frame. Frames are rendered in parallel and
+ * written in order, and the throughput is reported in frames per second.
+ * Usage: frames --input FILE|DIR|GLOB [--output DIR] [--res N] [--add SPEC]...
+ * [--format txt|html] [--workers N]
+ */
+public class FrameSequenceRenderer {
+
+    /**
+     * The default charset, as in the shell.
+     */
+    private static final char[] DEFAULT_CHARS = {'0','1','2','3','4','5','6','7','8','9'};
+    /**
+     * The name of the native metadata format of GIF streams.
+     */
+    private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+    /**
+     * The name of the native metadata format of GIF frames.
+     */
+    private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+    /**
+     * The color of the GIF background, and of the padding of the sub-images.
+     */
+    private static final int WHITE = 0xFFFFFFFF;
+    /**
+     * The marker that ends the sequence of rendered frames.
+     */
+    private static final Future<RenderedFrame> END = CompletableFuture.completedFuture(null);
+
+    private String input;
+    private String outputDir = ".";
+    private int resolution = Shell.DEFAULT_RESOLUTION;
+    private final List<String> addSpecs = new ArrayList<>();
+    private String format = "txt";
+    private int workers = Runtime.getRuntime().availableProcessors();
+    /**
+     * The name of the output files, before the frame number.
+     */
+    private String baseName = "frame";
+    /**
+     * The matcher shared by all workers.
+     */
+    private SubImgCharMatcher charsSet;
+    /**
+     * The frames being rendered, in order.
+     */
+    private BlockingQueue<Future<RenderedFrame>> pending;
+    /**
+     * The first error of rendering or writing, which stops the sequence.
+     */
+    private volatile Throwable failure;
+    /**
+     * The number of frames written.
+     */
+    private int written;
+    /**
+     * The number of tiles of the written frames.
+     */
+    private long tiles;
+    /**
+     * The number of tiles of the written frames that were kept from the previous frame.
+     */
+    private long reusedTiles;
+
+    /**
+     * A composited frame, waiting to be rendered.
+     */
+    private static final class Frame {
+        private final int index;
+        private final int[] pixels;
+        private final int width;
+        private final int height;
+        /**
+         * The pixels of the previous frame, or null if it has to be rendered whole.
+         */
+        private final int[] previous;
+        /**
+         * The region that may differ from the previous frame, or null for the whole frame.
+         */
+        private final Rectangle dirty;
+
+        Frame(int index, int[] pixels, int width, int height, int[] previous, Rectangle dirty) {
+            this.index = index;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.previous = previous;
+            this.dirty = dirty;
+        }
+    }
+
+    /**
+     * The ASCII art of a frame. If only some tiles were rendered, the others are filled in
+     * from the previous frame when the frame is written.
+     */
+    private static final class RenderedFrame {
+        private final int index;
+        private final char[][] chars;
+        /**
+         * The rendered tiles, or null if every tile was rendered.
+         */
+        private final boolean[][] changed;
+        private final int changedCount;
+
+        RenderedFrame(int index, char[][] chars, boolean[][] changed, int changedCount) {
+            this.index = index;
+            this.chars = chars;
+            this.changed = changed;
+            this.changedCount = changedCount;
+        }
+    }
+
+    /**
+     * Receives the composited frames of the input, in order.
+     */
+    @FunctionalInterface
+    private interface FrameSink {
+        /**
+         * Receives a frame.
+         *
+         * @param pixels The pixels of the frame, which are not modified afterwards.
+         * @param width The width of the frame.
+         * @param height The height of the frame.
+         * @param dirty The region that may differ from the previous frame, or null for
+         *              the whole frame.
+         * @throws InterruptedException If the renderer is interrupted.
+         */
+        void accept(int[] pixels, int width, int height, Rectangle dirty) throws InterruptedException;
+    }
+
+    /**
+     * Runs the frame sequence renderer.
+     *
+     * @param args The command-line options.
+     * @throws IOException If the input cannot be read or a frame cannot be written.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        FrameSequenceRenderer renderer = new FrameSequenceRenderer();
+        renderer.parseArgs(args);
+        renderer.run();
+    }
+
+    /**
+     * Parses the command-line options.
+     *
+     * @param args The command-line options.
+     */
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IncorrectFormatException("Missing value of " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--input": input = value; break;
+                case "--output": outputDir = value; break;
+                case "--res": resolution = BatchRenderer.parseInt(args[i], value); break;
+                case "--add": addSpecs.add(value); break;
+                case "--format": format = value; break;
+                case "--workers": workers = BatchRenderer.parseInt(args[i], value); break;
+                default:
+                    throw new IncorrectFormatException("Unknown option " + args[i]);
+            }
+        }
+        if (input == null) {
+            throw new IncorrectFormatException("Missing --input.");
+        }
+        if (!format.equals("txt") && !format.equals("html")) {
+            throw new IncorrectFormatException("Unknown format " + format);
+        }
+    }
+
+    /**
+     * Decodes, renders and writes every frame of the input.
+     *
+     * @throws IOException If the input cannot be read or a frame cannot be written.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    private void run() throws IOException, InterruptedException {
+        charsSet = new SubImgCharMatcher(DEFAULT_CHARS);
+        for (String spec : addSpecs) {
+            BatchRenderer.addChars(charsSet, spec);
+        }
+        // Build the matcher's index once, before the workers share it.
+        charsSet.getCharByImageBrightness(0);
+        Files.createDirectories(Paths.get(outputDir));
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        pending = new ArrayBlockingQueue<>(workers * 2);
+        Thread writer = new Thread(this::writeFrames, "frame-writer");
+        writer.start();
+        long start = System.nanoTime();
+        try {
+            decode(new FrameSink() {
+                private int index;
+                private int[] previous;
+                private int previousWidth;
+                private int previousHeight;
+
+                @Override
+                public void accept(int[] pixels, int width, int height, Rectangle dirty)
+                        throws InterruptedException {
+                    if (failure != null) {
+                        return;
+                    }
+                    boolean sameSize = previous != null && width == previousWidth && height == previousHeight;
+                    Frame frame = new Frame(index++, pixels, width, height,
+                            sameSize ? previous : null, sameSize ? dirty : null);
+                    pending.put(pool.submit(() -> render(frame)));
+                    previous = pixels;
+                    previousWidth = width;
+                    previousHeight = height;
+                }
+            });
+        } finally {
+            pending.put(END);
+            writer.join();
+            pool.shutdown();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Rendered %d frames in %.2f s (%.1f fps), %d of %d tiles reused.%n",
+                written, seconds, written / seconds, reusedTiles, tiles);
+    }
+
+    /**
+     * Decodes the frames of the input, stopping early once writing the frames failed.
+     *
+     * @param sink The receiver of the frames.
+     * @throws IOException If the input cannot be read.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    private void decode(FrameSink sink) throws IOException, InterruptedException {
+        Path inputPath = Paths.get(input);
+        if (Files.isRegularFile(inputPath)) {
+            String name = inputPath.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            baseName = dot > 0 ? name.substring(0, dot) : name;
+            decodeFile(inputPath, sink);
+            return;
+        }
+        for (Path path : BatchRenderer.listInput(input)) {
+            if (failure != null) {
+                return;
+            }
+            Image image = new Image(path.toString());
+            sink.accept(image.getRaster(), image.getWidth(), image.getHeight(), null);
+        }
+    }
+
+    /**
+     * Decodes the frames of a multi-image file, such as an animated GIF.
+     *
+     * @param path The file.
+     * @param sink The receiver of the frames.
+     * @throws IOException If the file cannot be read.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    private void decodeFile(Path path, FrameSink sink) throws IOException, InterruptedException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(path.toFile())) {
+            if (stream == null) {
+                throw new IOException("Cannot open " + path);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + path);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream);
+                if (reader.getFormatName().equalsIgnoreCase("gif")) {
+                    decodeGif(reader, sink);
+                    return;
+                }
+                int frames = reader.getNumImages(true);
+                for (int i = 0; i < frames && failure == null; i++) {
+                    BufferedImage im = reader.read(i);
+                    int width = im.getWidth();
+                    int height = im.getHeight();
+                    sink.accept(im.getRGB(0, 0, width, height, null, 0, width), width, height, null);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes the frames of an animated GIF, compositing each onto the logical screen
+     * and disposing of it as its graphic control extension requires.
+     *
+     * @param reader The reader of the GIF.
+     * @param sink The receiver of the frames.
+     * @throws IOException If the GIF cannot be read.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    private void decodeGif(ImageReader reader, FrameSink sink) throws IOException, InterruptedException {
+        IIOMetadataNode screen = child(reader.getStreamMetadata().getAsTree(GIF_STREAM_FORMAT),
+                "LogicalScreenDescriptor");
+        int width = Integer.parseInt(screen.getAttribute("logicalScreenWidth"));
+        int height = Integer.parseInt(screen.getAttribute("logicalScreenHeight"));
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        int[] canvas = new int[width * height];
+        Arrays.fill(canvas, WHITE);
+        // The region the previous frame's disposal restored, or null if none.
+        Rectangle disposed = null;
+        for (int i = 0; failure == null; i++) {
+            BufferedImage im;
+            try {
+                im = reader.read(i);
+            } catch (IndexOutOfBoundsException e) {
+                break;
+            }
+            Node tree = reader.getImageMetadata(i).getAsTree(GIF_IMAGE_FORMAT);
+            IIOMetadataNode descriptor = child(tree, "ImageDescriptor");
+            IIOMetadataNode control = child(tree, "GraphicControlExtension");
+            int left = Integer.parseInt(descriptor.getAttribute("imageLeftPosition"));
+            int top = Integer.parseInt(descriptor.getAttribute("imageTopPosition"));
+            String disposal = control == null ? "none" : control.getAttribute("disposalMethod");
+            Rectangle area = new Rectangle(left, top, im.getWidth(), im.getHeight()).intersection(bounds);
+            int[] restore = disposal.equals("restoreToPrevious") ? canvas.clone() : null;
+
+            int[] framePixels = im.getRGB(0, 0, im.getWidth(), im.getHeight(), null, 0, im.getWidth());
+            for (int y = area.y; y < area.y + area.height; y++) {
+                for (int x = area.x; x < area.x + area.width; x++) {
+                    int pixel = framePixels[(y - top) * im.getWidth() + x - left];
+                    if ((pixel >>> 24) != 0) {
+                        canvas[y * width + x] = pixel;
+                    }
+                }
+            }
+            Rectangle dirty = disposed == null ? area : area.union(disposed);
+            sink.accept(canvas.clone(), width, height, i == 0 ? null : dirty);
+
+            disposed = null;
+            if (disposal.equals("restoreToBackgroundColor")) {
+                for (int y = area.y; y < area.y + area.height; y++) {
+                    Arrays.fill(canvas, y * width + area.x, y * width + area.x + area.width, WHITE);
+                }
+                disposed = area;
+            } else if (restore != null) {
+                canvas = restore;
+                disposed = area;
+            }
+        }
+    }
+
+    /**
+     * Finds a child of a metadata tree by name.
+     *
+     * @param tree The root of the tree.
+     * @param name The name of the child.
+     * @return The child, or null if there is none.
+     */
+    private static IIOMetadataNode child(Node tree, String name) {
+        for (Node node = tree.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals(name)) {
+                return (IIOMetadataNode) node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Renders a frame. Only the tiles of the dirty rectangle whose pixels differ from the
+     * previous frame are matched; the first frame, and a frame of another size than the
+     * previous one, are matched whole. Every tile is matched by the brightness TileGrid
+     * sums from its own pixels, never by the summed-area table of ImageProcess, which
+     * rounds differently: a tile that keeps its character from the previous frame keeps
+     * exactly the one it would be matched to again.
+     *
+     * @param frame The frame.
+     * @return The ASCII art of the frame.
+     */
+    private RenderedFrame render(Frame frame) {
+        if (!TileGrid.fits(frame.width, frame.height, resolution)) {
+            throw new IllegalCommandException("Resolution exceeds the image width.");
+        }
+        TileGrid grid = new TileGrid(frame.width, frame.height, resolution);
+        int rows = grid.getRows();
+        boolean[][] changed = null;
+        int changedCount = rows * resolution;
+        if (frame.previous != null) {
+            changed = new boolean[rows][resolution];
+            changedCount = 0;
+            Rectangle dirty = frame.dirty == null ?
+                    new Rectangle(0, 0, frame.width, frame.height) : frame.dirty;
+            if (!dirty.isEmpty()) {
+                int fromRow = Math.max(0, grid.rowOf(dirty.y));
+                int toRow = Math.min(rows, grid.rowOf(dirty.y + dirty.height - 1) + 1);
+                int fromCol = Math.max(0, grid.colOf(dirty.x));
+                int toCol = Math.min(resolution, grid.colOf(dirty.x + dirty.width - 1) + 1);
+                for (int i = fromRow; i < toRow; i++) {
+                    for (int j = fromCol; j < toCol; j++) {
+                        if (!grid.tileEquals(frame.previous, frame.pixels, i, j)) {
+                            changed[i][j] = true;
+                            changedCount++;
+                        }
+                    }
+                }
+            }
+        }
+        char[][] chars = new char[rows][resolution];
+        double[] grey = new double[grid.getSize()];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < resolution; j++) {
+                if (changed == null || changed[i][j]) {
+                    chars[i][j] = charsSet.getCharByImageBrightness(
+                            grid.tileBrightness(frame.pixels, i, j, grey));
+                }
+            }
+        }
+        return new RenderedFrame(frame.index, chars, changed, changedCount);
+    }
+
+    /**
+     * Writes the rendered frames in order, filling in the tiles each frame kept from the
+     * previous one. After an error, the remaining frames are drained without writing.
+     */
+    private void writeFrames() {
+        char[][] previousChars = null;
+        try {
+            for (Future<RenderedFrame> result = pending.take(); result != END; result = pending.take()) {
+                if (failure != null) {
+                    continue;
+                }
+                try {
+                    RenderedFrame frame = result.get();
+                    int rows = frame.chars.length;
+                    if (frame.changed != null) {
+                        for (int i = 0; i < rows; i++) {
+                            for (int j = 0; j < resolution; j++) {
+                                if (!frame.changed[i][j]) {
+                                    frame.chars[i][j] = previousChars[i][j];
+                                }
+                            }
+                        }
+                    }
+                    BatchRenderer.writeArt(Paths.get(outputDir,
+                            String.format("%s_%05d.%s", baseName, frame.index, format)), frame.chars, format);
+                    previousChars = frame.chars;
+                    written++;
+                    tiles += (long) rows * resolution;
+                    reusedTiles += (long) rows * resolution - frame.changedCount;
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                } catch (IOException | RuntimeException | Error e) {
+                    // Any failure, not only an I/O error, must keep the writer draining,
+                    // or the decoder blocks on a full queue forever.
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
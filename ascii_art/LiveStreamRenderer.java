@@ -0,0 +1,374 @@
+package ascii_art;
+
+import image.Image;
+import image.ImageProcess;
+import image.TileGrid;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Converts a live stream of raw frames to ASCII art in real time. Frames are packed
+ * 8-bit RGB, width * height * 3 bytes each, read from a named pipe or a file ("-" for
+ * standard input), or produced by a built-in test generator.
+ * A capture thread fills one of three preallocated frame buffers while the render thread
+ * converts the latest complete frame, so the render thread always works on the newest
+ * frame and older frames are dropped when it falls behind. The image, its brightness
+ * data and a RenderContext are allocated once and refilled in place for every frame, so
+ * the render thread allocates nothing in steady state.
+ * At the end, the per-frame latency from capture to output is reported as p50 and p99,
+ * with the bytes the render thread allocated per frame.
+ * Usage: live [--input PIPE] [--width 640] [--height 480] [--res 128] [--add SPEC]...
+ * [--fps 30] [--frames N] [--output console|none]
+ * where --fps paces the generator and --frames stops after N rendered frames (default:
+ * the end of the input, or 600 generated frames).
+ */
+public class LiveStreamRenderer {
+
+    /**
+     * The default charset, as in the shell.
+     */
+    private static final char[] DEFAULT_CHARS = {'0','1','2','3','4','5','6','7','8','9'};
+    /**
+     * The number of frame buffers: one being captured, one ready and one being rendered.
+     */
+    private static final int BUFFERS = 3;
+    /**
+     * The number of frames generated when --frames is not given.
+     */
+    private static final int DEFAULT_GENERATED_FRAMES = 600;
+    /**
+     * The number of frames rendered before allocations are counted, so class loading and
+     * the first build of the brightness data are not counted.
+     */
+    private static final int WARMUP_FRAMES = 30;
+    /**
+     * The maximal number of latency samples kept; later frames overwrite the oldest.
+     */
+    private static final int MAX_SAMPLES = 1 << 16;
+    /**
+     * The ANSI sequence that moves the cursor to the top-left corner of the terminal.
+     */
+    private static final String CURSOR_HOME = "\033[H";
+
+    private String input;
+    private int width = 640;
+    private int height = 480;
+    private int resolution = Shell.DEFAULT_RESOLUTION;
+    private final List<String> addSpecs = new ArrayList<>();
+    private double fps = 30;
+    private int maxFrames;
+    private String output = "console";
+
+    /**
+     * The frame buffers, in packed RGB.
+     */
+    private byte[][] buffers;
+    /**
+     * The System.nanoTime() at which the frame in each buffer was complete.
+     */
+    private final long[] capturedAt = new long[BUFFERS];
+    /**
+     * The buffer being captured into.
+     */
+    private int capturing = 0;
+    /**
+     * The buffer holding the latest complete frame.
+     */
+    private int ready = 1;
+    /**
+     * The buffer being rendered.
+     */
+    private int rendering = 2;
+    /**
+     * Whether the ready buffer holds a frame that was not rendered yet.
+     */
+    private boolean fresh;
+    /**
+     * Whether the input has ended.
+     */
+    private boolean ended;
+    /**
+     * Whether the capture thread should keep running.
+     */
+    private volatile boolean running = true;
+    /**
+     * The number of frames captured.
+     */
+    private long captured;
+    /**
+     * The number of captured frames that were replaced before being rendered.
+     */
+    private long dropped;
+
+    /**
+     * Runs the live stream renderer.
+     *
+     * @param args The command-line options.
+     * @throws IOException If the input cannot be opened or the output cannot be written.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LiveStreamRenderer renderer = new LiveStreamRenderer();
+        renderer.parseArgs(args);
+        renderer.run();
+    }
+
+    /**
+     * Parses the command-line options.
+     *
+     * @param args The command-line options.
+     */
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IncorrectFormatException("Missing value of " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--input": input = value; break;
+                case "--width": width = BatchRenderer.parseInt(args[i], value); break;
+                case "--height": height = BatchRenderer.parseInt(args[i], value); break;
+                case "--res": resolution = BatchRenderer.parseInt(args[i], value); break;
+                case "--add": addSpecs.add(value); break;
+                case "--fps": fps = BatchRenderer.parseDouble(args[i], value); break;
+                case "--frames":
+                    maxFrames = BatchRenderer.parseInt(args[i], value);
+                    if (maxFrames < 1) {
+                        throw new IncorrectFormatException("--frames must be at least 1.");
+                    }
+                    break;
+                case "--output": output = value; break;
+                default:
+                    throw new IncorrectFormatException("Unknown option " + args[i]);
+            }
+        }
+        if (!output.equals("console") && !output.equals("none")) {
+            throw new IncorrectFormatException("Unknown output " + output);
+        }
+        if (width < 1 || height < 1 || (long) width * height * 3 > Integer.MAX_VALUE) {
+            throw new IncorrectFormatException("--width and --height must be at least 1, and a frame at most "
+                    + Integer.MAX_VALUE + " bytes.");
+        }
+        if (!(fps > 0) || Double.isInfinite(fps)) {
+            throw new IncorrectFormatException("--fps must be a positive number.");
+        }
+        if (!TileGrid.fits(width, height, resolution)) {
+            throw new IllegalCommandException("Resolution exceeds the frame width or height.");
+        }
+        if (input == null && maxFrames == 0) {
+            maxFrames = DEFAULT_GENERATED_FRAMES;
+        }
+    }
+
+    /**
+     * Captures and renders frames until the input ends or enough frames were rendered,
+     * then reports the frame rate and latency.
+     *
+     * @throws IOException If the input cannot be opened or the output cannot be written.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    private void run() throws IOException, InterruptedException {
+        SubImgCharMatcher charsSet = new SubImgCharMatcher(DEFAULT_CHARS);
+        for (String spec : addSpecs) {
+            BatchRenderer.addChars(charsSet, spec);
+        }
+        int[] pixels = new int[width * height];
+        ImageProcess imageProcess = new ImageProcess(new Image(pixels, width, height));
+        RenderContext context = new RenderContext(imageProcess, resolution, charsSet);
+        Writer out = output.equals("console") ? new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.US_ASCII),
+                CURSOR_HOME.length() + context.getLength()) : null;
+        long[] latencies = new long[MAX_SAMPLES];
+
+        buffers = new byte[BUFFERS][width * height * 3];
+        InputStream in = input == null ? null :
+                input.equals("-") ? System.in : new FileInputStream(input);
+        Thread capture = new Thread(() -> capture(in), "frame-capture");
+        capture.setDaemon(true);
+        capture.start();
+
+        if (out != null) {
+            out.write("\033[2J");
+        }
+        int rendered = 0;
+        long allocatedFrom = 0;
+        long start = System.nanoTime();
+        try {
+            while (maxFrames == 0 || rendered < maxFrames) {
+                int buffer = takeFrame();
+                if (buffer < 0) {
+                    break;
+                }
+                if (rendered == WARMUP_FRAMES) {
+                    allocatedFrom = RenderStats.allocatedBytes();
+                }
+                toPixels(buffers[buffer], pixels);
+                imageProcess.update();
+                context.render();
+                if (out != null) {
+                    out.write(CURSOR_HOME);
+                    context.writeTo(out);
+                    out.flush();
+                }
+                latencies[rendered % MAX_SAMPLES] = System.nanoTime() - capturedAt[buffer];
+                rendered++;
+            }
+        } finally {
+            running = false;
+            if (in != null && in != System.in) {
+                in.close();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocated = rendered > WARMUP_FRAMES ? RenderStats.allocatedBytes() - allocatedFrom : 0;
+        int samples = Math.min(rendered, MAX_SAMPLES);
+        Arrays.sort(latencies, 0, samples);
+        System.out.printf("Rendered %d frames of %d captured (%d dropped) in %.2f s (%.1f fps).%n",
+                rendered, captured(), dropped(), seconds, rendered / seconds);
+        if (samples > 0) {
+            System.out.printf("Latency p50 %.2f ms, p99 %.2f ms; %d B allocated per frame.%n",
+                    latencies[samples / 2] / 1e6, latencies[Math.min(samples - 1, samples * 99 / 100)] / 1e6,
+                    rendered > WARMUP_FRAMES ? allocated / (rendered - WARMUP_FRAMES) : 0);
+        }
+    }
+
+    /**
+     * Captures frames into the capture buffer and publishes each complete one, until the
+     * input ends or the renderer stops.
+     *
+     * @param in The input of raw frames, or null for the test generator.
+     */
+    private void capture(InputStream in) {
+        long period = (long) (1e9 / fps);
+        long next = System.nanoTime();
+        try {
+            for (int frame = 0; running; frame++) {
+                byte[] buffer = buffers[capturing];
+                if (in == null) {
+                    long delay = next - System.nanoTime();
+                    if (delay > 0) {
+                        Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+                    }
+                    next += period;
+                    generate(buffer, frame);
+                } else if (in.readNBytes(buffer, 0, buffer.length) < buffer.length) {
+                    break;
+                }
+                publishFrame(System.nanoTime());
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Did not read frame: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            endOfInput();
+        }
+    }
+
+    /**
+     * Makes the captured frame the ready one. A ready frame that was not rendered yet is
+     * dropped.
+     *
+     * @param time The System.nanoTime() at which the frame was complete.
+     */
+    private synchronized void publishFrame(long time) {
+        capturedAt[capturing] = time;
+        int previous = ready;
+        ready = capturing;
+        capturing = previous;
+        if (fresh) {
+            dropped++;
+        }
+        fresh = true;
+        captured++;
+        notifyAll();
+    }
+
+    /**
+     * Waits for a frame that was not rendered yet and takes it for rendering.
+     *
+     * @return The buffer of the frame, or -1 if the input ended.
+     * @throws InterruptedException If the renderer is interrupted.
+     */
+    private synchronized int takeFrame() throws InterruptedException {
+        while (!fresh && !ended) {
+            wait();
+        }
+        if (!fresh) {
+            return -1;
+        }
+        int previous = rendering;
+        rendering = ready;
+        ready = previous;
+        fresh = false;
+        return rendering;
+    }
+
+    /**
+     * Marks the end of the input.
+     */
+    private synchronized void endOfInput() {
+        ended = true;
+        notifyAll();
+    }
+
+    private synchronized long captured() {
+        return captured;
+    }
+
+    private synchronized long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Unpacks a frame of packed RGB into opaque ARGB pixels.
+     *
+     * @param frame The frame, 3 bytes per pixel.
+     * @param pixels The array that receives the pixels.
+     */
+    private static void toPixels(byte[] frame, int[] pixels) {
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            pixels[i] = 0xFF000000 | (frame[j] & 0xFF) << 16 | (frame[j + 1] & 0xFF) << 8 | frame[j + 2] & 0xFF;
+        }
+    }
+
+    /**
+     * Draws a test frame: a drifting diagonal gradient with a bright disc moving across it.
+     *
+     * @param frame The buffer that receives the frame, in packed RGB.
+     * @param index The number of the frame.
+     */
+    private void generate(byte[] frame, int index) {
+        int discX = (int) (width * (0.5 + 0.4 * Math.sin(index * 0.05)));
+        int discY = (int) (height * (0.5 + 0.4 * Math.cos(index * 0.03)));
+        int radius = Math.min(width, height) / 6;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = ((x + y + index * 4) * 255 / (width + height)) & 0xFF;
+                int dx = x - discX;
+                int dy = y - discY;
+                if (dx * dx + dy * dy < radius * radius) {
+                    value = 255;
+                }
+                int j = (y * width + x) * 3;
+                frame[j] = (byte) value;
+                frame[j + 1] = (byte) value;
+                frame[j + 2] = (byte) (255 - value);
+            }
+        }
+    }
+}
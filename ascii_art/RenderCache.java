@@ -0,0 +1,201 @@
+package ascii_art;
+
+import image.ImageProcess;
+import image_char_matching.SubImgCharMatcher;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded least-recently-used cache of rendered ASCII art, keyed by the image,
+ * the resolution and the charset with its matching mode. Entries are evicted once the
+ * total number of cached characters exceeds the capacity.
+ */
+public class RenderCache {
+
+    /**
+     * The default capacity of the cache, in characters.
+     */
+    public static final long DEFAULT_MAX_CHARS = 1L << 22;
+    /**
+     * The maximal total number of cached characters.
+     */
+    private final long maxChars;
+    /**
+     * The cached renders, from least to most recently used.
+     */
+    private final LinkedHashMap<Key, char[][]> renders = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The total number of cached characters.
+     */
+    private long totalChars;
+    /**
+     * The number of lookups that found a cached render.
+     */
+    private long hits;
+    /**
+     * The number of lookups that did not find a cached render.
+     */
+    private long misses;
+
+    /**
+     * The key of a cached render.
+     */
+    private static final class Key {
+        private final ImageProcess image;
+        private final int resolution;
+        private final String charset;
+
+        Key(ImageProcess image, int resolution, String charset) {
+            this.image = image;
+            this.resolution = resolution;
+            this.charset = charset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return image == other.image && resolution == other.resolution &&
+                    charset.equals(other.charset);
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(image) * 31 + resolution) * 31 + charset.hashCode();
+        }
+    }
+
+    /**
+     * Constructs a RenderCache.
+     *
+     * @param maxChars The maximal total number of cached characters.
+     */
+    public RenderCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Returns a cached render. The returned array is shared and must not be modified.
+     *
+     * @param image The rendered image.
+     * @param resolution The resolution of the render.
+     * @param charset The charset of the render.
+     * @return The cached render, or null if it is not cached.
+     */
+    public char[][] get(ImageProcess image, int resolution, SubImgCharMatcher charset) {
+        char[][] render = renders.get(new Key(image, resolution, charsetKey(charset)));
+        if (render == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return render;
+    }
+
+    /**
+     * Caches a render, evicting the least recently used renders if the cache is full.
+     * The array is kept as is and must not be modified afterwards.
+     *
+     * @param image The rendered image.
+     * @param resolution The resolution of the render.
+     * @param charset The charset of the render.
+     * @param render The render.
+     */
+    public void put(ImageProcess image, int resolution, SubImgCharMatcher charset, char[][] render) {
+        long size = countChars(render);
+        if (size > maxChars) {
+            return;
+        }
+        char[][] previous = renders.put(new Key(image, resolution, charsetKey(charset)), render);
+        if (previous != null) {
+            totalChars -= countChars(previous);
+        }
+        totalChars += size;
+        Iterator<char[][]> iterator = renders.values().iterator();
+        while (totalChars > maxChars && iterator.hasNext()) {
+            totalChars -= countChars(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes every render of an image, once the image is no longer used.
+     *
+     * @param image The image.
+     */
+    public void invalidate(ImageProcess image) {
+        Iterator<Map.Entry<Key, char[][]>> iterator = renders.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, char[][]> entry = iterator.next();
+            if (entry.getKey().image == image) {
+                totalChars -= countChars(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found a cached render.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that did not find a cached render.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the total number of cached characters.
+     *
+     * @return The total number of cached characters.
+     */
+    public long getTotalChars() {
+        return totalChars;
+    }
+
+    /**
+     * Builds the key of a charset and its matching mode. It does not depend on the order
+     * of the characters.
+     *
+     * @param charset The charset.
+     * @return The sorted characters of the charset, followed by its matching mode.
+     */
+    private static String charsetKey(SubImgCharMatcher charset) {
+        List<Character> charList = charset.getter();
+        char[] chars = new char[charList.size()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = charList.get(i);
+        }
+        Arrays.sort(chars);
+        return new String(chars) + "/" + charset.getQuantization() +
+                (charset.isStructural() ? "/shape" : "");
+    }
+
+    /**
+     * Counts the characters of a render.
+     *
+     * @param render The render.
+     * @return The number of characters of the render.
+     */
+    private static long countChars(char[][] render) {
+        long count = 0;
+        for (char[] row : render) {
+            count += row.length;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,226 @@
+package ascii_art;
+
+import image.ImageProcess;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A reusable context for rendering the same image, or a stream of frames of one size,
+ * many times. It owns every buffer a render needs but the tile brightness, which the
+ * per-resolution brightness cache of the image keeps: the cells of structural matching, and the ASCII
+ * art itself, as one char[] of rows with a fixed stride, each ended by a newline. Once the
+ * buffers exist, a render allocates nothing; changes to the charset are picked up by the
+ * matcher, and a new image or resolution only needs a reset, which reuses the buffers
+ * when they are large enough.
+ * A context is not thread-safe; concurrent renders need one context each.
+ */
+public class RenderContext {
+
+    /**
+     * The image being rendered.
+     */
+    private ImageProcess imageProcess;
+    /**
+     * The resolution of the ASCII art (number of characters per row).
+     */
+    private int resolution;
+    /**
+     * The matcher used to map image brightness to ASCII characters.
+     */
+    private SubImgCharMatcher asciiChars;
+    /**
+     * The number of rows of the ASCII art.
+     */
+    private int rows;
+    /**
+     * The side length of each sub-image, in pixels.
+     */
+    private int size;
+    /**
+     * The brightness of the cells of one sub-image, scratch space of structural matching.
+     */
+    private final double[] cells = new double[SubImgCharMatcher.SHAPE_GRID * SubImgCharMatcher.SHAPE_GRID];
+    /**
+     * The ASCII art: rows of resolution characters and a newline, stride characters apart.
+     */
+    private char[] chars = new char[0];
+    /**
+     * The distance between the starts of two rows in chars.
+     */
+    private int stride;
+    /**
+     * The average color of every sub-image, packed as RGB in row-major order, if the
+     * image keeps its color.
+     */
+    private int[] colors = new int[0];
+
+    /**
+     * Constructs a render context for an image.
+     *
+     * @param img The image to be converted to ASCII art.
+     * @param resolution The resolution of the ASCII art (number of characters per row).
+     * @param asciiChars The matcher used to map image brightness to ASCII characters.
+     */
+    public RenderContext(ImageProcess img, int resolution, SubImgCharMatcher asciiChars) {
+        reset(img, resolution, asciiChars);
+    }
+
+    /**
+     * Points the context at another image, resolution or matcher. The output buffer is
+     * reused if it is large enough.
+     *
+     * @param img The image to be converted to ASCII art.
+     * @param resolution The resolution of the ASCII art (number of characters per row).
+     * @param asciiChars The matcher used to map image brightness to ASCII characters.
+     */
+    public void reset(ImageProcess img, int resolution, SubImgCharMatcher asciiChars) {
+        this.imageProcess = img;
+        this.resolution = resolution;
+        this.asciiChars = asciiChars;
+        this.rows = img.getSubImageRows(resolution);
+        this.size = img.getSubImageSize(resolution);
+        this.stride = resolution + 1;
+        if (chars.length < rows * stride) {
+            chars = new char[rows * stride];
+        }
+        for (int i = 0; i < rows; i++) {
+            chars[i * stride + resolution] = '\n';
+        }
+    }
+
+    /**
+     * Drops the image and the matcher, keeping the buffers, so a context that waits to be
+     * reused does not keep its last image alive. A reset must precede the next render;
+     * the last render can still be read.
+     */
+    public void clear() {
+        this.imageProcess = null;
+        this.asciiChars = null;
+    }
+
+    /**
+     * Renders the image into the output buffer, matching each sub-image by its
+     * brightness, or by its shape when the matcher is in structural mode. If the image
+     * keeps its color, the average color of each sub-image is filled in too.
+     *
+     * @return The output buffer; see getStride and getLength.
+     */
+    public char[] render() {
+        renderRows(0, rows);
+        return chars;
+    }
+
+    /**
+     * Renders a band of rows into the output buffer, as render does, so rows can be
+     * handed on before the whole image is rendered. The other rows are left as they are.
+     *
+     * @param fromRow The first row of the band (inclusive).
+     * @param toRow The last row of the band (exclusive).
+     */
+    public void renderRows(int fromRow, int toRow) {
+        if (imageProcess.isColorEnabled()) {
+            if (colors.length < rows * resolution) {
+                colors = new int[rows * resolution];
+            }
+            for (int i = fromRow; i < toRow; i++) {
+                imageProcess.calcRowColors(resolution, i, colors, i * resolution);
+            }
+        }
+        if (asciiChars.isStructural()) {
+            int grid = SubImgCharMatcher.SHAPE_GRID;
+            for (int i = fromRow; i < toRow; i++) {
+                for (int j = 0; j < resolution; j++) {
+                    imageProcess.calcSubImgCells(i * size, j * size, size, grid, cells);
+                    chars[i * stride + j] = asciiChars.getCharByImageCells(cells);
+                }
+            }
+            return;
+        }
+        // Looked up on every render: the resolution may have been evicted, and the image
+        // updated since the last render, which leaves its rows to be refilled.
+        double[] brightness = imageProcess.getBrightnessRows(resolution, fromRow, toRow);
+        for (int i = fromRow; i < toRow; i++) {
+            asciiChars.getCharsByImageBrightness(brightness, i * resolution, chars, i * stride, resolution);
+        }
+    }
+
+    /**
+     * Returns the output buffer, which holds the last render.
+     *
+     * @return The output buffer.
+     */
+    public char[] getChars() {
+        return chars;
+    }
+
+    /**
+     * Returns the colors of the last render, if the image keeps its color: the average
+     * color of each sub-image, packed as RGB, resolution colors per row with no gaps.
+     *
+     * @return The colors.
+     */
+    public int[] getColors() {
+        return colors;
+    }
+
+    /**
+     * Returns the number of rows of the ASCII art.
+     *
+     * @return The number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the resolution of the ASCII art.
+     *
+     * @return The number of characters per row.
+     */
+    public int getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Returns the distance between the starts of two rows in the output buffer.
+     *
+     * @return The stride, the resolution plus one for the newline.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Returns the length of the ASCII art in the output buffer, newlines included.
+     *
+     * @return The number of characters of the last render.
+     */
+    public int getLength() {
+        return rows * stride;
+    }
+
+    /**
+     * Writes the last render as text, one line per row.
+     *
+     * @param out The writer.
+     * @throws IOException If the writer fails.
+     */
+    public void writeTo(Writer out) throws IOException {
+        out.write(chars, 0, rows * stride);
+    }
+
+    /**
+     * Copies the last render into a new array, for callers that keep it.
+     *
+     * @return A 2D array of characters representing the ASCII art.
+     */
+    public char[][] toArray() {
+        char[][] array = new char[rows][resolution];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(chars, i * stride, array[i], 0, resolution);
+        }
+        return array;
+    }
+}
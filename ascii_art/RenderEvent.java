@@ -0,0 +1,32 @@
+package ascii_art;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JFR event for one ASCII art render, from the cache lookup to the end of its output.
+ */
+@Name("ascii_art.Render")
+@Label("Render")
+@Category("ASCII Art")
+@Description("One ASCII art render of the shell")
+@StackTrace(false)
+class RenderEvent extends Event {
+
+    @Label("Resolution")
+    int resolution;
+
+    @Label("Tiles")
+    long tiles;
+
+    @Label("Charset Size")
+    int charsetSize;
+
+    @Label("Cached")
+    @Description("Whether the render was served from the render cache")
+    boolean cached;
+}
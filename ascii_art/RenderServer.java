@@ -0,0 +1,514 @@
+package ascii_art;
+
+import ascii_output.StreamingHtmlAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.Image;
+import image.ImageProcess;
+import image.TileGrid;
+import image_char_matching.SubImgCharMatcher;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A long-lived HTTP server that converts uploaded images to ASCII art, so many requests
+ * share one warm JVM and its glyph brightness data.
+ * POST an image to /render?res=128&amp;add=all&amp;format=text to get the ASCII art back as
+ * plain text, or with format=html as an HTML page. add may be repeated and takes the
+ * arguments of the shell's add command; without it the charset is the digits.
+ * Requests are handled on virtual threads when the JVM supports them. At most a fixed
+ * number of renders run at once, and an image is decoded only within its render; a
+ * request that cannot start a render within the timeout is answered with 503, and one
+ * whose render does not finish within it with 504, and its render is cancelled. Bodies
+ * over the byte limit, and images over the pixel limit by their header, are answered
+ * with 413 before anything is decoded.
+ * Usage: server [--port 8080] [--max-renders N] [--timeout-ms MS] [--max-bytes N]
+ * [--max-pixels N]
+ */
+public class RenderServer {
+
+    /**
+     * The default charset, as in the shell.
+     */
+    private static final char[] DEFAULT_CHARS = {'0','1','2','3','4','5','6','7','8','9'};
+    /**
+     * The maximal number of charsets whose matchers are kept warm.
+     */
+    private static final int MAX_CACHED_CHARSETS = 64;
+    /**
+     * The largest output buffer, in characters, of a render context that is kept for later
+     * renders. Contexts of larger renders are dropped, so rare huge renders do not pin
+     * their buffers.
+     */
+    private static final int MAX_POOLED_CHARS = 1 << 20;
+    /**
+     * The number of rows rendered between checks for cancellation.
+     */
+    private static final int CANCEL_CHECK_ROWS = 16;
+    /**
+     * The message of a request whose body is not a readable image.
+     */
+    private static final String BAD_IMAGE_MESSAGE = "Did not execute due to problem with image file.";
+
+    private final int maxRenders;
+    private final long timeoutMillis;
+    /**
+     * The largest request body, in bytes.
+     */
+    private final int maxBytes;
+    /**
+     * The largest image, in pixels.
+     */
+    private final long maxPixels;
+    /**
+     * The permits of the renders that may run at once.
+     */
+    private final Semaphore renderPermits;
+    /**
+     * The executor that runs requests and renders.
+     */
+    private final ExecutorService executor;
+    /**
+     * Warm matchers, by the add arguments that built their charset.
+     */
+    private final ConcurrentHashMap<String, SubImgCharMatcher> matchers = new ConcurrentHashMap<>();
+    /**
+     * The render contexts of finished renders, reused by later ones, so a steady stream of
+     * renders does not allocate their buffers again. Each render holds a permit, so at
+     * most maxRenders contexts are in use.
+     */
+    private final BlockingQueue<RenderContext> contexts;
+
+    /**
+     * Constructs a RenderServer.
+     *
+     * @param maxRenders The maximal number of renders that run at once.
+     * @param timeoutMillis The time a request may wait for a render and for its result.
+     * @param maxBytes The largest request body, in bytes.
+     * @param maxPixels The largest image, in pixels.
+     */
+    public RenderServer(int maxRenders, long timeoutMillis, int maxBytes, long maxPixels) {
+        this.maxRenders = maxRenders;
+        this.timeoutMillis = timeoutMillis;
+        this.maxBytes = maxBytes;
+        this.maxPixels = maxPixels;
+        this.renderPermits = new Semaphore(maxRenders);
+        this.contexts = new ArrayBlockingQueue<>(maxRenders);
+        this.executor = newThreadPerTaskExecutor();
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @param args The command-line options.
+     * @throws IOException If the server cannot bind its port.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        int maxRenders = Runtime.getRuntime().availableProcessors();
+        long timeoutMillis = 10000;
+        int maxBytes = 32 << 20;
+        long maxPixels = 4096L * 4096;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IncorrectFormatException("Missing value of " + args[i]);
+            }
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--max-renders": maxRenders = Integer.parseInt(args[i + 1]); break;
+                case "--timeout-ms": timeoutMillis = Long.parseLong(args[i + 1]); break;
+                case "--max-bytes": maxBytes = Integer.parseInt(args[i + 1]); break;
+                case "--max-pixels": maxPixels = Long.parseLong(args[i + 1]); break;
+                default:
+                    throw new IncorrectFormatException("Unknown option " + args[i]);
+            }
+        }
+        if (maxRenders < 1) {
+            throw new IncorrectFormatException("--max-renders must be at least 1.");
+        }
+        if (maxBytes < 1 || maxPixels < 1) {
+            throw new IncorrectFormatException("--max-bytes and --max-pixels must be at least 1.");
+        }
+        new RenderServer(maxRenders, timeoutMillis, maxBytes, maxPixels).start(port);
+        System.out.println("Listening on http://localhost:" + port + "/render");
+    }
+
+    /**
+     * Binds the server to a local port and starts serving.
+     *
+     * @param port The port.
+     * @return The started HTTP server.
+     * @throws IOException If the port cannot be bound.
+     */
+    public HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), maxRenders * 4);
+        server.createContext("/render", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread, or, on JVMs
+     * without virtual threads, on a pooled platform thread.
+     *
+     * @return The executor.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Handles one request to /render. The image is only opened here, to read its size
+     * from its header; it is decoded within its render.
+     *
+     * @param exchange The request and its response.
+     * @throws IOException If the response cannot be sent.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "text/plain", "Use POST with an image body.");
+                return;
+            }
+            int resolution = Shell.DEFAULT_RESOLUTION;
+            String format = "text";
+            List<String> addSpecs = new ArrayList<>();
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String parameter : query.split("&")) {
+                    int equals = parameter.indexOf('=');
+                    if (equals < 0) {
+                        continue;
+                    }
+                    String name = parameter.substring(0, equals);
+                    String value = URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+                    switch (name) {
+                        case "res": resolution = Integer.parseInt(value); break;
+                        case "format": format = value; break;
+                        case "add": addSpecs.add(value); break;
+                        default: break;
+                    }
+                }
+            }
+            if (!format.equals("text") && !format.equals("html")) {
+                throw new IncorrectFormatException("Unknown format " + format + "; use text or html.");
+            }
+            byte[] body = readBody(exchange);
+            if (body == null) {
+                send(exchange, 413, "text/plain", "The image is larger than " + maxBytes + " bytes.");
+                return;
+            }
+            ImageReader reader = openReader(body);
+            if (reader == null) {
+                send(exchange, 400, "text/plain", BAD_IMAGE_MESSAGE);
+                return;
+            }
+            long pixels;
+            try {
+                pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+            } catch (IOException | RuntimeException e) {
+                reader.dispose();
+                send(exchange, 400, "text/plain", BAD_IMAGE_MESSAGE);
+                return;
+            }
+            if (pixels > maxPixels) {
+                reader.dispose();
+                send(exchange, 413, "text/plain", "The image is larger than " + maxPixels + " pixels.");
+                return;
+            }
+            boolean html = format.equals("html");
+            String response = render(reader, resolution, getMatcher(addSpecs), html);
+            if (response == null) {
+                send(exchange, 503, "text/plain", "Too many renders in progress.");
+                return;
+            }
+            send(exchange, 200, html ? "text/html; charset=utf-8" : "text/plain; charset=utf-8", response);
+        } catch (NumberFormatException | IncorrectFormatException | IllegalCommandException e) {
+            send(exchange, 400, "text/plain", e.getMessage());
+        } catch (TimeoutException e) {
+            send(exchange, 504, "text/plain", "Render timed out.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("Did not render: " + e);
+            send(exchange, 500, "text/plain", "Did not execute due to an internal error.");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the body of a request, up to the byte limit. A body whose declared length is
+     * over the limit is not read at all.
+     *
+     * @param exchange The request.
+     * @return The body, or null if it is over the limit.
+     * @throws IOException If the body cannot be read.
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length) > maxBytes) {
+            return null;
+        }
+        byte[] body = exchange.getRequestBody().readNBytes(maxBytes + 1);
+        return body.length > maxBytes ? null : body;
+    }
+
+    /**
+     * Opens an image reader on the bytes of an image, without decoding it.
+     *
+     * @param body The bytes of the image.
+     * @return The reader, with its input set, or null if no reader knows the format.
+     * @throws IOException If the bytes cannot be read.
+     */
+    private static ImageReader openReader(byte[] body) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(body));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    /**
+     * Decodes and renders an image once a render permit is free, waiting for the result
+     * up to the timeout. The render goes through a pooled render context, and the response
+     * body is formatted from its buffer. A render that times out is cancelled: its decode
+     * is aborted, and its matching stops at the next band of rows. The permit is released
+     * when the render ends, so a render that is still winding down counts against the
+     * limit.
+     *
+     * @param reader The reader of the image, which the render disposes of.
+     * @param resolution The resolution.
+     * @param charsSet The charset.
+     * @param html Whether to format the ASCII art as an HTML page rather than plain text.
+     * @return The response body, or null if no render permit was free within the timeout.
+     * @throws TimeoutException If the render did not finish within the timeout.
+     * @throws InterruptedException If the request thread is interrupted.
+     */
+    private String render(ImageReader reader, int resolution, SubImgCharMatcher charsSet, boolean html)
+            throws TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Future<String> result;
+        try {
+            if (!renderPermits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                reader.dispose();
+                return null;
+            }
+        } catch (InterruptedException e) {
+            reader.dispose();
+            throw e;
+        }
+        AtomicBoolean cancelled = new AtomicBoolean();
+        try {
+            result = executor.submit(() -> {
+                try {
+                    return render(decode(reader, cancelled), resolution, charsSet, html, cancelled);
+                } finally {
+                    reader.dispose();
+                    renderPermits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            reader.dispose();
+            renderPermits.release();
+            throw e;
+        }
+        try {
+            return result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // The render is not cancelled through its future, which would skip a render
+            // that has not started yet, and with it the release of its permit.
+            cancelled.set(true);
+            reader.abort();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Decodes the image of a reader.
+     *
+     * @param reader The reader.
+     * @param cancelled Whether the render was cancelled.
+     * @return The image.
+     * @throws CancellationException If the render was cancelled before or during the decode.
+     */
+    private static Image decode(ImageReader reader, AtomicBoolean cancelled) {
+        if (cancelled.get()) {
+            throw new CancellationException("Render cancelled.");
+        }
+        BufferedImage upload;
+        try {
+            upload = reader.read(0);
+        } catch (IOException | RuntimeException e) {
+            upload = null;
+        }
+        if (cancelled.get()) {
+            throw new CancellationException("Render cancelled.");
+        }
+        if (upload == null) {
+            throw new IncorrectFormatException(BAD_IMAGE_MESSAGE);
+        }
+        return new Image(upload);
+    }
+
+    /**
+     * Renders an image into a pooled render context, a band of rows at a time, and
+     * formats the response body from it.
+     *
+     * @param image The image.
+     * @param resolution The resolution.
+     * @param charsSet The charset.
+     * @param html Whether to format the ASCII art as an HTML page rather than plain text.
+     * @param cancelled Whether the render was cancelled.
+     * @return The response body.
+     * @throws CancellationException If the render was cancelled.
+     */
+    private String render(Image image, int resolution, SubImgCharMatcher charsSet, boolean html,
+                          AtomicBoolean cancelled) {
+        if (!TileGrid.fits(image.getWidth(), image.getHeight(), resolution)) {
+            throw new IllegalCommandException("Did not execute due to exceeding boundaries.");
+        }
+        ImageProcess imageProcess = new ImageProcess(image);
+        RenderContext context = contexts.poll();
+        if (context == null) {
+            context = new RenderContext(imageProcess, resolution, charsSet);
+        } else {
+            context.reset(imageProcess, resolution, charsSet);
+        }
+        try {
+            int rows = context.getRows();
+            for (int fromRow = 0; fromRow < rows; fromRow += CANCEL_CHECK_ROWS) {
+                if (cancelled.get()) {
+                    throw new CancellationException("Render cancelled.");
+                }
+                context.renderRows(fromRow, Math.min(fromRow + CANCEL_CHECK_ROWS, rows));
+            }
+            return html ? toHtml(context) : toText(context);
+        } finally {
+            context.clear();
+            if (context.getLength() <= MAX_POOLED_CHARS) {
+                contexts.offer(context);
+            }
+        }
+    }
+
+    /**
+     * Returns a warm matcher for a charset, building it on first use.
+     *
+     * @param addSpecs The add arguments that build the charset from the digits.
+     * @return The matcher.
+     */
+    private SubImgCharMatcher getMatcher(List<String> addSpecs) {
+        String key = String.join("\n", addSpecs);
+        SubImgCharMatcher charsSet = matchers.get(key);
+        if (charsSet != null) {
+            return charsSet;
+        }
+        charsSet = new SubImgCharMatcher(DEFAULT_CHARS);
+        for (String spec : addSpecs) {
+            BatchRenderer.addChars(charsSet, spec);
+        }
+        // Build the index before the matcher is shared.
+        charsSet.getCharByImageBrightness(0);
+        if (matchers.size() < MAX_CACHED_CHARSETS) {
+            SubImgCharMatcher previous = matchers.putIfAbsent(key, charsSet);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        return charsSet;
+    }
+
+    /**
+     * Formats the last render of a context as plain text, one line per row.
+     *
+     * @param context The context.
+     * @return The text.
+     */
+    private static String toText(RenderContext context) {
+        return new String(context.getChars(), 0, context.getLength());
+    }
+
+    /**
+     * Formats the last render of a context as an HTML page in a monospaced font.
+     *
+     * @param context The context.
+     * @return The HTML page.
+     */
+    private static String toHtml(RenderContext context) {
+        StringWriter html = new StringWriter();
+        StreamingHtmlAsciiOutput output = new StreamingHtmlAsciiOutput(html, "Courier New");
+        char[] chars = context.getChars();
+        char[] row = new char[context.getResolution()];
+        try {
+            output.begin(context.getRows(), row.length);
+            for (int i = 0; i < context.getRows(); i++) {
+                System.arraycopy(chars, i * context.getStride(), row, 0, row.length);
+                output.row(row);
+            }
+            output.end();
+        } finally {
+            output.close();
+        }
+        return html.toString();
+    }
+
+    /**
+     * Sends a complete response.
+     *
+     * @param exchange The request and its response.
+     * @param status The HTTP status.
+     * @param contentType The content type of the body.
+     * @param body The body.
+     * @throws IOException If the response cannot be sent.
+     */
+    private static void send(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ascii_art;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event for one stage of the ASCII art pipeline.
+ */
+@Name("ascii_art.RenderStage")
+@Label("Render Stage")
+@Category("ASCII Art")
+@Description("The time and memory spent in one stage of the ASCII art pipeline")
+@StackTrace(false)
+class RenderStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    long elapsed;
+
+    @Label("Allocated")
+    @Description("The bytes allocated by the thread that ran the stage")
+    @DataAmount(DataAmount.BYTES)
+    long allocated;
+}
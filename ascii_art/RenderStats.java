@@ -0,0 +1,188 @@
+package ascii_art;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * The metrics of one render: the wall time and the bytes allocated by the rendering
+ * thread in each stage of the pipeline, the number of tiles and the size of the charset.
+ * Every recorded stage is also committed as a RenderStageEvent, and the render as a
+ * whole as a RenderEvent, when a JFR recording enables them.
+ * Stats are only gathered when the shell's stats command or a JFR recording asks for
+ * them, so unmeasured renders pay nothing beyond one check per render.
+ */
+public class RenderStats {
+
+    /**
+     * The stages of the pipeline.
+     */
+    public enum Stage {
+        /** Decoding the image file. */
+        DECODE,
+        /** Padding the image and building its summed-area table. */
+        PROCESS,
+        /** Computing the brightness of the sub-images; not measured in structural matching. */
+        BRIGHTNESS,
+        /** Matching each sub-image to a character. */
+        MATCH,
+        /** Writing the ASCII art to the output. */
+        OUTPUT
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    /**
+     * Never committed; only asked whether render events are enabled, so the check
+     * allocates nothing.
+     */
+    private static final RenderEvent RENDER_PROBE = new RenderEvent();
+    /**
+     * Never committed; only asked whether stage events are enabled.
+     */
+    private static final RenderStageEvent STAGE_PROBE = new RenderStageEvent();
+
+    private final long[] nanos = new long[Stage.values().length];
+    private final long[] bytes = new long[Stage.values().length];
+    private final RenderEvent event = new RenderEvent();
+    private int resolution;
+    private long tiles;
+    private int charsetSize;
+    private boolean cached;
+
+    /**
+     * Returns whether a JFR recording is collecting render events.
+     *
+     * @return True if render events are enabled.
+     */
+    public static boolean isRecording() {
+        return RENDER_PROBE.isEnabled();
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread.
+     *
+     * @return The allocated bytes, or 0 if the JVM does not report them.
+     */
+    public static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Starts measuring a render.
+     */
+    public void begin() {
+        event.begin();
+    }
+
+    /**
+     * Records a stage that started at the given time and allocation count and has just
+     * ended on the current thread.
+     *
+     * @param stage The stage.
+     * @param startNanos The System.nanoTime() at the start of the stage.
+     * @param startBytes The allocatedBytes() at the start of the stage.
+     */
+    public void record(Stage stage, long startNanos, long startBytes) {
+        add(stage, System.nanoTime() - startNanos, allocatedBytes() - startBytes);
+    }
+
+    /**
+     * Adds time and allocations to a stage.
+     *
+     * @param stage The stage.
+     * @param elapsedNanos The wall time, in nanoseconds.
+     * @param allocated The allocated bytes.
+     */
+    public void add(Stage stage, long elapsedNanos, long allocated) {
+        nanos[stage.ordinal()] += elapsedNanos;
+        bytes[stage.ordinal()] += allocated;
+        if (STAGE_PROBE.isEnabled()) {
+            RenderStageEvent stageEvent = new RenderStageEvent();
+            stageEvent.stage = stage.name().toLowerCase();
+            stageEvent.elapsed = elapsedNanos;
+            stageEvent.allocated = allocated;
+            stageEvent.commit();
+        }
+    }
+
+    /**
+     * Copies the stages of another measurement, such as those of loading the image.
+     *
+     * @param other The other measurement.
+     * @param stages The stages to copy.
+     */
+    public void copyStages(RenderStats other, Stage... stages) {
+        for (Stage stage : stages) {
+            nanos[stage.ordinal()] = other.nanos[stage.ordinal()];
+            bytes[stage.ordinal()] = other.bytes[stage.ordinal()];
+        }
+    }
+
+    /**
+     * Ends the measurement of a render and commits its RenderEvent.
+     *
+     * @param resolution The resolution of the render.
+     * @param tiles The number of tiles of the render.
+     * @param charsetSize The number of characters in the charset.
+     * @param cached Whether the render was served from the render cache.
+     */
+    public void end(int resolution, long tiles, int charsetSize, boolean cached) {
+        this.resolution = resolution;
+        this.tiles = tiles;
+        this.charsetSize = charsetSize;
+        this.cached = cached;
+        event.end();
+        if (event.shouldCommit()) {
+            event.resolution = resolution;
+            event.tiles = tiles;
+            event.charsetSize = charsetSize;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the wall time of a stage.
+     *
+     * @param stage The stage.
+     * @return The wall time, in nanoseconds.
+     */
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    /**
+     * Returns the bytes allocated in a stage.
+     *
+     * @param stage The stage.
+     * @return The allocated bytes.
+     */
+    public long getBytes(Stage stage) {
+        return bytes[stage.ordinal()];
+    }
+
+    /**
+     * Formats the stats as a table with one line per stage.
+     *
+     * @return The formatted stats.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(String.format(
+                "Resolution %d, %d tiles, %d chars, %s.%n", resolution, tiles, charsetSize,
+                cached ? "served from cache" : "rendered"));
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (Stage stage : Stage.values()) {
+            text.append(String.format("%-11s %10.3f ms %14d B%n", stage.name().toLowerCase(),
+                    nanos[stage.ordinal()] / 1e6, bytes[stage.ordinal()]));
+            totalNanos += nanos[stage.ordinal()];
+            totalBytes += bytes[stage.ordinal()];
+        }
+        text.append(String.format("%-11s %10.3f ms %14d B", "total", totalNanos / 1e6, totalBytes));
+        return text.toString();
+    }
+}
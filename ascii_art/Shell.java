@@ -1,13 +1,13 @@
 package ascii_art;
 
 import ascii_output.AsciiOutput;
-import ascii_output.ConsoleAsciiOutput;
-import ascii_output.HtmlAsciiOutput;
+import ascii_output.StreamingConsoleAsciiOutput;
 import image.Image;
 import image_char_matching.SubImgCharMatcher;
 
 import javax.sound.midi.Soundbank;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Represents a shell for interacting with the ASCII art program.
@@ -54,7 +54,7 @@ public class Shell {
         this.resolution = DEFAULT_RESOLUTION;
         this.image = new Image("cat.jpeg");
         this.outputFile = "out";
-        this.output = new ConsoleAsciiOutput();
+        this.output = new StreamingConsoleAsciiOutput();
         this.shellMethods = new ShellMethods(charsSet, resolution, image, outputFile, output);
     }
 
@@ -82,12 +82,32 @@ public class Shell {
     }
 
     /**
-     * Main method to start the ASCII art shell.
+     * Main method to start the ASCII art shell, the batch renderer if the first argument
+     * is "batch", the frame sequence renderer if it is "frames", the live stream renderer
+     * if it is "live", or the render server if it is "server".
      *
-     * @param args Command-line arguments (not used).
+     * @param args Command-line arguments: none, or "batch", "frames", "live" or "server"
+     *             followed by the options of that renderer.
      * @throws IOException If there is a problem with the image file.
+     * @throws InterruptedException If the batch renderer is interrupted.
      */
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("batch")) {
+            BatchRenderer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("frames")) {
+            FrameSequenceRenderer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("live")) {
+            LiveStreamRenderer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("server")) {
+            RenderServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         Shell shell = new Shell();
         shell.run();
     }
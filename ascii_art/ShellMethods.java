@@ -1,13 +1,18 @@
 package ascii_art;
 
+import ascii_art.RenderStats.Stage;
 import ascii_output.AsciiOutput;
-import ascii_output.ConsoleAsciiOutput;
-import ascii_output.HtmlAsciiOutput;
+import ascii_output.ColorRowAsciiOutput;
+import ascii_output.RowAsciiOutput;
+import ascii_output.StreamingConsoleAsciiOutput;
+import ascii_output.StreamingHtmlAsciiOutput;
 import image.Image;
 import image.ImageProcess;
 import image_char_matching.SubImgCharMatcher;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Provides methods for executing commands in the ASCII art shell.
@@ -33,11 +38,47 @@ public class ShellMethods {
      * The output strategy for the ASCII art.
      */
     private AsciiOutput output;
+    /**
+     * The cache of previous renders.
+     */
+    private final RenderCache renderCache = new RenderCache(RenderCache.DEFAULT_MAX_CHARS);
+    /**
+     * The buffers of serial renders, reused from one render to the next, or null before
+     * the first render.
+     */
+    private RenderContext renderContext;
+    /**
+     * The pool that renders row bands in parallel, or null to render serially.
+     */
+    private ForkJoinPool pool;
+    /**
+     * Whether the ASCII art is output in the colors of the image.
+     */
+    private boolean colorEnabled;
+    /**
+     * Whether renders are measured for the stats command.
+     */
+    private boolean statsEnabled;
+    /**
+     * The measurement of loading the current image, or null if it was not measured.
+     */
+    private RenderStats imageStats;
+    /**
+     * The measurement of the last measured render, or null if none was measured.
+     */
+    private RenderStats lastStats;
+
+    /**
+     * The largest number of buckets of quantized matching.
+     */
+    private static final int MAX_QUANTIZATION = 1 << 16;
 
     /**
      * The array of valid commands.
      */
-    private final String[] trueCommands = {"chars", "add", "remove", "res", "image", "output", "asciiArt"};
+    private final String[] trueCommands =
+            {"chars", "add", "remove", "res", "image", "output", "asciiArt", "quant", "stats", "match",
+                    "color", "parallel"};
 
     /**
      * Constructs a ShellMethods object.
@@ -148,18 +189,64 @@ public class ShellMethods {
             }
         }
 
+        if (input.startsWith("quant")) {
+            if (checkInput(input, 6, "quant")) {
+                String suffix = input.substring(6);
+                checkQuant(suffix);
+            }
+        }
+
+        if (input.startsWith("match")) {
+            if (checkInput(input, 6, "match")) {
+                String suffix = input.substring(6);
+                checkMatch(suffix);
+            }
+        }
+
+        if (input.startsWith("parallel")) {
+            if (checkInput(input, 9, "parallel")) {
+                String suffix = input.substring(9);
+                checkParallel(suffix);
+            }
+        }
+
+        if (input.startsWith("color")) {
+            if (checkInput(input, 6, "color")) {
+                String suffix = input.substring(6);
+                checkColor(suffix);
+            }
+        }
+
+        if (input.startsWith("stats")) {
+            checkStats(input.length() > 5 ? input.substring(6) : "");
+        }
+
         if (input.startsWith("asciiArt")) {
             if (this.charsSet.getter().isEmpty()) {
                 throw new IllegalCommandException("Did not execute. Charset is empty.");
             }
-            AsciiArtAlgorithm asciiArtAlgorithm =
-                    new AsciiArtAlgorithm(this.img, this.resolution,this.charsSet);
-            char[][] ret = asciiArtAlgorithm.run();
-            output.out(ret);
+            try {
+                RenderStats stats = statsEnabled || RenderStats.isRecording() ? new RenderStats() : null;
+                asciiArt(stats);
+                if (stats != null) {
+                    lastStats = stats;
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
 
     }
 
+    /**
+     * Returns the cache of previous renders.
+     *
+     * @return The render cache.
+     */
+    public RenderCache getRenderCache() {
+        return renderCache;
+    }
+
     /**
      * Checks if the input command has the correct length.
      *
@@ -174,6 +261,14 @@ public class ShellMethods {
                 throw new IncorrectFormatException("Did not change resolution due to incorrect format.");
             } else if(command.equals("output")) {
                 throw new IncorrectFormatException("Did not change output method due to incorrect format.");
+            } else if(command.equals("match")) {
+                throw new IncorrectFormatException("Did not change matching mode due to incorrect format.");
+            } else if(command.equals("quant")) {
+                throw new IncorrectFormatException("Did not change quantization due to incorrect format.");
+            } else if(command.equals("parallel")) {
+                throw new IncorrectFormatException("Did not change parallel mode due to incorrect format.");
+            } else if(command.equals("color")) {
+                throw new IncorrectFormatException("Did not change color mode due to incorrect format.");
             } else {
                 throw new IncorrectFormatException("Did not " + command + " due to incorrect format.");
             }
@@ -188,14 +283,210 @@ public class ShellMethods {
      */
     private void checkOutput(String suffix) {
         if (suffix.equals("html")) {
-            output = new HtmlAsciiOutput(this.outputFile + ".html", "Courier New");
+            output = new StreamingHtmlAsciiOutput(this.outputFile + ".html", "Courier New");
         } else if (suffix.equals("console")) {
-            output = new ConsoleAsciiOutput();
+            output = new StreamingConsoleAsciiOutput();
         } else {
             throw new IncorrectFormatException("Did not change output method due to incorrect format.");
         }
     }
 
+    /**
+     * Renders the ASCII art of the current image to the output, reusing a cached render
+     * when there is one, and measures each stage of the render if asked to. The render
+     * runs as it does unmeasured, serially or in parallel bands, and the brightness and
+     * matching stages are measured band by band; structural matching reads the cells of
+     * the sub-images instead, so it has no brightness stage.
+     *
+     * @param stats The measurement of the render, or null to not measure it.
+     */
+    private void asciiArt(RenderStats stats) {
+        if (stats != null) {
+            stats.begin();
+            if (imageStats != null) {
+                stats.copyStages(imageStats, Stage.DECODE, Stage.PROCESS);
+            }
+        }
+        char[][] ret = renderCache.get(this.img, this.resolution, this.charsSet);
+        boolean cached = ret != null;
+        long start = stats == null ? 0 : System.nanoTime();
+        long startBytes = stats == null ? 0 : RenderStats.allocatedBytes();
+        if (cached) {
+            outputArt(ret);
+            if (stats != null) {
+                stats.record(Stage.OUTPUT, start, startBytes);
+            }
+        } else {
+            if (renderContext == null) {
+                renderContext = new RenderContext(this.img, this.resolution, this.charsSet);
+            }
+            AsciiArtAlgorithm asciiArtAlgorithm =
+                    new AsciiArtAlgorithm(this.img, this.resolution, this.charsSet, this.pool, renderContext);
+            if (stats != null) {
+                asciiArtAlgorithm.measureStages();
+            }
+            if (output instanceof RowAsciiOutput) {
+                if (stats == null) {
+                    ret = asciiArtAlgorithm.run((RowAsciiOutput) output);
+                } else {
+                    TimedRowAsciiOutput timedOutput = TimedRowAsciiOutput.of((RowAsciiOutput) output);
+                    ret = asciiArtAlgorithm.run(timedOutput);
+                    asciiArtAlgorithm.addStages(stats, System.nanoTime() - start - timedOutput.getNanos(),
+                            RenderStats.allocatedBytes() - startBytes - timedOutput.getBytes());
+                    stats.add(Stage.OUTPUT, timedOutput.getNanos(), timedOutput.getBytes());
+                }
+            } else {
+                ret = asciiArtAlgorithm.run();
+                if (stats != null) {
+                    asciiArtAlgorithm.addStages(stats, System.nanoTime() - start,
+                            RenderStats.allocatedBytes() - startBytes);
+                    start = System.nanoTime();
+                    startBytes = RenderStats.allocatedBytes();
+                }
+                output.out(ret);
+                if (stats != null) {
+                    stats.record(Stage.OUTPUT, start, startBytes);
+                }
+            }
+            renderCache.put(this.img, this.resolution, this.charsSet, ret);
+        }
+        if (stats != null) {
+            stats.end(this.resolution, (long) this.img.getSubImageRows(this.resolution) * this.resolution,
+                    this.charsSet.getter().size(), cached);
+        }
+    }
+
+    /**
+     * Outputs a rendered ASCII art, in the colors of the current image if color is on
+     * and the output can show it.
+     *
+     * @param ret The ASCII art of the current image.
+     */
+    private void outputArt(char[][] ret) {
+        if (!(colorEnabled && output instanceof ColorRowAsciiOutput)) {
+            output.out(ret);
+            return;
+        }
+        ColorRowAsciiOutput colorOutput = (ColorRowAsciiOutput) output;
+        int[] colors = new int[this.resolution];
+        try {
+            colorOutput.begin(ret.length, this.resolution);
+            for (int i = 0; i < ret.length; i++) {
+                this.img.calcRowColors(this.resolution, i, colors, 0);
+                colorOutput.row(ret[i], colors, 0);
+            }
+            colorOutput.end();
+        } finally {
+            colorOutput.close();
+        }
+    }
+
+    /**
+     * Checks and sets how sub-images are matched to characters based on the suffix:
+     * "brightness" by their brightness alone, or "shape" by their shape.
+     *
+     * @param suffix The suffix indicating the matching mode.
+     */
+    private void checkMatch(String suffix) {
+        if (suffix.equals("brightness")) {
+            charsSet.setStructural(false);
+        } else if (suffix.equals("shape")) {
+            charsSet.setStructural(true);
+        } else {
+            throw new IncorrectFormatException("Did not change matching mode due to incorrect format.");
+        }
+        System.out.println("Matching by " + suffix + ".");
+    }
+
+    /**
+     * Turns parallel rendering on or off based on the suffix. In parallel, row bands are
+     * rendered by the common fork/join pool.
+     *
+     * @param suffix The suffix: "on" or "off".
+     */
+    private void checkParallel(String suffix) {
+        if (suffix.equals("on")) {
+            pool = ForkJoinPool.commonPool();
+        } else if (suffix.equals("off")) {
+            pool = null;
+        } else {
+            throw new IncorrectFormatException("Did not change parallel mode due to incorrect format.");
+        }
+        System.out.println("Parallel " + suffix + ".");
+    }
+
+    /**
+     * Turns colored output on or off based on the suffix. In color, each character is
+     * shown in the average color of its sub-image, by the console and HTML outputs.
+     *
+     * @param suffix The suffix: "on" or "off".
+     */
+    private void checkColor(String suffix) {
+        if (suffix.equals("on")) {
+            colorEnabled = true;
+        } else if (suffix.equals("off")) {
+            colorEnabled = false;
+        } else {
+            throw new IncorrectFormatException("Did not change color mode due to incorrect format.");
+        }
+        this.img.setColorEnabled(colorEnabled);
+        System.out.println("Color " + suffix + ".");
+    }
+
+    /**
+     * Shows the stats of the last measured render, or turns measuring on or off, based
+     * on the suffix.
+     *
+     * @param suffix The suffix: empty to show the stats, "on" or "off".
+     */
+    private void checkStats(String suffix) {
+        if (suffix.equals("on")) {
+            statsEnabled = true;
+            System.out.println("Stats on.");
+        } else if (suffix.equals("off")) {
+            statsEnabled = false;
+            System.out.println("Stats off.");
+        } else if (suffix.isEmpty()) {
+            if (lastStats == null) {
+                System.out.println("No render was measured. Use stats on before asciiArt.");
+            } else {
+                System.out.println(lastStats);
+            }
+        } else {
+            throw new IncorrectFormatException("Did not change stats due to incorrect format.");
+        }
+    }
+
+    /**
+     * Checks and sets the matching mode based on the suffix: "off" for exact matching,
+     * or a number of brightness buckets for quantized matching.
+     *
+     * @param suffix The suffix indicating the matching mode.
+     */
+    private void checkQuant(String suffix) {
+        if (suffix.equals("off")) {
+            charsSet.setQuantization(0);
+            System.out.println("Quantization off.");
+            return;
+        }
+        int buckets;
+        try {
+            buckets = Integer.parseInt(suffix);
+        } catch (NumberFormatException e) {
+            throw new IncorrectFormatException("Did not change quantization due to incorrect format.");
+        }
+        if (buckets < 1 || buckets > MAX_QUANTIZATION) {
+            throw new IllegalCommandException("Did not change quantization due to exceeding boundaries.");
+        }
+        charsSet.setQuantization(buckets);
+        if (charsSet.getter().isEmpty()) {
+            System.out.println("Quantization set to " + buckets + " buckets.");
+        } else {
+            System.out.printf("Quantization set to %d buckets, max deviation %.4f.%n",
+                    buckets, charsSet.getQuantizationError());
+        }
+    }
+
     /**
      * Checks and sets the image based on the suffix.
      *
@@ -203,9 +494,22 @@ public class ShellMethods {
      * @throws IOException If there is a problem with the image file.
      */
     private void checkImage(String suffix) throws IOException {
+        RenderStats stats = statsEnabled || RenderStats.isRecording() ? new RenderStats() : null;
+        long start = System.nanoTime();
+        long startBytes = stats == null ? 0 : RenderStats.allocatedBytes();
         Image newImage = new Image(suffix);
+        if (stats != null) {
+            stats.record(Stage.DECODE, start, startBytes);
+        }
         newImage.saveImage(suffix);
-        this.img = new ImageProcess(newImage);
+        renderCache.invalidate(this.img);
+        start = System.nanoTime();
+        startBytes = stats == null ? 0 : RenderStats.allocatedBytes();
+        this.img = new ImageProcess(newImage, colorEnabled);
+        if (stats != null) {
+            stats.record(Stage.PROCESS, start, startBytes);
+        }
+        this.imageStats = stats;
     }
 
     /**
@@ -240,32 +544,7 @@ public class ShellMethods {
      * @param suffix The suffix indicating the characters to add.
      */
     private void checkAdd (String suffix)  {
-        char[] suffixArray = suffix.toCharArray();
-        if (suffix.equals("all")) {
-            for (int i = 32; i < 127; i++) {
-                charsSet.addChar((char) i);
-            }
-        }
-        else if (suffix.equals("space")) {
-            charsSet.addChar((char) 32);
-        }
-        else if (suffixArray.length == 1 && suffixArray[0] < 127 && suffixArray[0] > 31) {
-            charsSet.addChar(suffixArray[0]);
-        }
-        else if (suffixArray.length == 3 && suffixArray[0] < 127 && suffixArray[0] > 31 &&
-                suffixArray[1] == 45 &&
-                suffixArray[2] < 127 && suffixArray[2] > 31) {
-            if (suffixArray[0] > suffixArray[2]) {
-                for (int i = suffixArray[2]; i <= suffixArray[0]; i++) {
-                    charsSet.addChar((char) i);
-                }
-            }
-            else {
-                for (int i = suffixArray[0]; i <= suffixArray[2]; i++) {
-                    charsSet.addChar((char) i);
-                }
-            }
-        } else {
+        if (!charsSet.addChars(suffix)) {
             throw new IncorrectFormatException("Did not add due to incorrect format.");
         }
     }
@@ -276,32 +555,7 @@ public class ShellMethods {
      * @param suffix The suffix indicating the characters to remove.
      */
     private void checkRemove(String suffix) {
-        char[] suffixArray = suffix.toCharArray();
-        if (suffix.equals("all")) {
-            for (int i = 32; i < 127; i++) {
-                charsSet.removeChar((char) i);
-            }
-        }
-        else if (suffix.equals("space")) {
-            charsSet.removeChar((char) 32);
-        }
-        else if (suffixArray.length == 1 && suffixArray[0] < 127 && suffixArray[0] > 31) {
-            charsSet.removeChar(suffixArray[0]);
-        }
-        else if (suffixArray.length == 3 && suffixArray[0] < 127 && suffixArray[0] > 31 &&
-                suffixArray[1] == 45 &&
-                suffixArray[2] < 127 && suffixArray[2] > 31) {
-            if (suffixArray[0] > suffixArray[2]) {
-                for (int i = suffixArray[2]; i <= suffixArray[0]; i++) {
-                    charsSet.removeChar((char) i);
-                }
-            }
-            else {
-                for (int i = suffixArray[0]; i <= suffixArray[2]; i++) {
-                    charsSet.removeChar((char) i);
-                }
-            }
-        } else {
+        if (!charsSet.removeChars(suffix)) {
             throw new IncorrectFormatException("Did not remove due to incorrect format.");
         }
     }
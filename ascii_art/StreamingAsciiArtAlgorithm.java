@@ -0,0 +1,55 @@
+package ascii_art;
+
+import image.StreamingImageProcess;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.IOException;
+
+/**
+ * This class generates ASCII art from an image file that is reduced while it is decoded,
+ * for images too large to be held in memory. It produces the same ASCII art as
+ * AsciiArtAlgorithm, up to floating-point rounding of the sub-image brightness.
+ */
+public class StreamingAsciiArtAlgorithm {
+
+    /**
+     * The image file to be converted to ASCII art.
+     */
+    private final StreamingImageProcess imageProcess;
+    /**
+     * The resolution of the ASCII art (number of characters per pixel).
+     */
+    private final int resolution;
+    /**
+     * The matcher used to map image brightness to ASCII characters.
+     */
+    private final SubImgCharMatcher asciiChars;
+
+    /**
+     * Constructs an instance of StreamingAsciiArtAlgorithm.
+     *
+     * @param img The image file to be converted to ASCII art.
+     * @param resolution The resolution of the ASCII art (number of characters per pixel).
+     * @param asciiChars The matcher used to map image brightness to ASCII characters.
+     */
+    public StreamingAsciiArtAlgorithm(StreamingImageProcess img, int resolution,
+                                      SubImgCharMatcher asciiChars) {
+        this.imageProcess = img;
+        this.resolution = resolution;
+        this.asciiChars = asciiChars;
+    }
+
+    /**
+     * Runs the ASCII art algorithm to convert the image to ASCII art.
+     *
+     * @return A 2D array of characters representing the ASCII art.
+     * @throws IOException If the image file cannot be read.
+     */
+    public char[][] run() throws IOException {
+        char[][] returnChars =
+                new char[imageProcess.getSubImageRows(this.resolution)][this.resolution];
+        imageProcess.forEachSubImage(this.resolution,
+                (i, j, brightness) -> returnChars[i][j] = asciiChars.getCharByImageBrightness(brightness));
+        return returnChars;
+    }
+}
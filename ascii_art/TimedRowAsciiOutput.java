@@ -0,0 +1,120 @@
+package ascii_art;
+
+import ascii_output.ColorRowAsciiOutput;
+import ascii_output.RowAsciiOutput;
+
+/**
+ * A row output that forwards to another one and measures the wall time and the bytes
+ * allocated by the calling thread while writing, so streamed output can be told apart
+ * from the rendering it is interleaved with. It can show color only if the other output
+ * can, so renders pick the same rows, plain or in color, as they would without it.
+ */
+class TimedRowAsciiOutput implements RowAsciiOutput {
+
+    private final RowAsciiOutput output;
+    private long nanos;
+    private long bytes;
+
+    /**
+     * Constructs a TimedRowAsciiOutput.
+     *
+     * @param output The output to forward to.
+     */
+    private TimedRowAsciiOutput(RowAsciiOutput output) {
+        this.output = output;
+    }
+
+    /**
+     * Returns a timed output that forwards to another one, and that is a
+     * ColorRowAsciiOutput if and only if the other one is.
+     *
+     * @param output The output to forward to.
+     * @return The timed output.
+     */
+    static TimedRowAsciiOutput of(RowAsciiOutput output) {
+        return output instanceof ColorRowAsciiOutput ? new Color((ColorRowAsciiOutput) output)
+                : new TimedRowAsciiOutput(output);
+    }
+
+    @Override
+    public void begin(int rows, int cols) {
+        long start = System.nanoTime();
+        long startBytes = RenderStats.allocatedBytes();
+        output.begin(rows, cols);
+        measured(start, startBytes);
+    }
+
+    @Override
+    public void row(char[] row) {
+        long start = System.nanoTime();
+        long startBytes = RenderStats.allocatedBytes();
+        output.row(row);
+        measured(start, startBytes);
+    }
+
+    @Override
+    public void end() {
+        long start = System.nanoTime();
+        long startBytes = RenderStats.allocatedBytes();
+        output.end();
+        measured(start, startBytes);
+    }
+
+    @Override
+    public void close() {
+        long start = System.nanoTime();
+        long startBytes = RenderStats.allocatedBytes();
+        output.close();
+        measured(start, startBytes);
+    }
+
+    /**
+     * Returns the wall time spent writing.
+     *
+     * @return The wall time, in nanoseconds.
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Returns the bytes allocated while writing.
+     *
+     * @return The allocated bytes.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Adds a write that has just ended to the totals.
+     *
+     * @param start The System.nanoTime() at the start of the write.
+     * @param startBytes The allocated bytes at the start of the write.
+     */
+    void measured(long start, long startBytes) {
+        nanos += System.nanoTime() - start;
+        bytes += RenderStats.allocatedBytes() - startBytes;
+    }
+
+    /**
+     * A timed output that forwards rows in color.
+     */
+    private static final class Color extends TimedRowAsciiOutput implements ColorRowAsciiOutput {
+
+        private final ColorRowAsciiOutput colorOutput;
+
+        Color(ColorRowAsciiOutput output) {
+            super(output);
+            this.colorOutput = output;
+        }
+
+        @Override
+        public void row(char[] row, int[] colors, int offset) {
+            long start = System.nanoTime();
+            long startBytes = RenderStats.allocatedBytes();
+            colorOutput.row(row, colors, offset);
+            measured(start, startBytes);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ascii_output;
+
+/**
+ * A row output that can also show the color of each character, such as the average
+ * color of the sub-image it was matched to. Rows given without colors are output as
+ * plain ASCII art.
+ */
+public interface ColorRowAsciiOutput extends RowAsciiOutput {
+
+    /**
+     * Outputs the next row in color. The arrays may be reused by the caller once this
+     * returns.
+     *
+     * @param row The characters of the row.
+     * @param colors The colors of the characters, packed as RGB.
+     * @param offset The position of the color of the first character in colors.
+     */
+    void row(char[] row, int[] colors, int offset);
+}
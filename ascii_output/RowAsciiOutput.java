@@ -0,0 +1,57 @@
+package ascii_output;
+
+/**
+ * An output strategy that receives ASCII art one row at a time, as the rows are
+ * produced, so output can start before the whole image is converted.
+ * Errors while writing are reported as java.io.UncheckedIOException.
+ * Producers call close() after each image, in a finally block, so an image whose
+ * rendering failed before end() does not leave resources open or partial output behind.
+ */
+public interface RowAsciiOutput extends AsciiOutput {
+
+    /**
+     * Starts the output of a new ASCII art image.
+     *
+     * @param rows The number of rows of the image.
+     * @param cols The number of characters in each row.
+     */
+    void begin(int rows, int cols);
+
+    /**
+     * Outputs the next row. The array may be reused by the caller once this returns.
+     *
+     * @param row The characters of the row.
+     */
+    void row(char[] row);
+
+    /**
+     * Ends the output of the image and flushes everything written.
+     */
+    void end();
+
+    /**
+     * Releases what the output holds for the current image, and abandons the image if
+     * its output was not ended. It does nothing after end(), and a new image can begin
+     * after it.
+     */
+    default void close() {
+    }
+
+    /**
+     * Outputs a complete ASCII art image, row by row.
+     *
+     * @param chars The ASCII art image.
+     */
+    @Override
+    default void out(char[][] chars) {
+        try {
+            begin(chars.length, chars.length == 0 ? 0 : chars[0].length);
+            for (char[] row : chars) {
+                row(row);
+            }
+            end();
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ascii_output;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Outputs ASCII art to the console through a buffered writer, flushing each row as soon
+ * as it is complete, so the output can be piped into other processes as it is produced.
+ * Rows in color are written with ANSI 24-bit color escapes; an escape is only written
+ * where the color changes, and the color is reset at the end of each row.
+ */
+public class StreamingConsoleAsciiOutput implements ColorRowAsciiOutput {
+
+    /**
+     * The writer over the console.
+     */
+    private final Writer writer = new BufferedWriter(new OutputStreamWriter(System.out));
+
+    @Override
+    public void begin(int rows, int cols) {
+    }
+
+    @Override
+    public void row(char[] row) {
+        try {
+            for (char c : row) {
+                writer.write(c);
+                writer.write(' ');
+            }
+            writer.write(System.lineSeparator());
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void row(char[] row, int[] colors, int offset) {
+        try {
+            int current = -1;
+            for (int j = 0; j < row.length; j++) {
+                int color = colors[offset + j];
+                if (color != current) {
+                    writer.write("\033[38;2;");
+                    writeDecimal((color >> 16) & 0xFF);
+                    writer.write(';');
+                    writeDecimal((color >> 8) & 0xFF);
+                    writer.write(';');
+                    writeDecimal(color & 0xFF);
+                    writer.write('m');
+                    current = color;
+                }
+                writer.write(row[j]);
+                writer.write(' ');
+            }
+            writer.write("\033[0m");
+            writer.write(System.lineSeparator());
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a color component in decimal, without building a string.
+     *
+     * @param value The component, between 0 and 255.
+     * @throws IOException If the writer fails.
+     */
+    private void writeDecimal(int value) throws IOException {
+        if (value >= 100) {
+            writer.write('0' + value / 100);
+        }
+        if (value >= 10) {
+            writer.write('0' + value / 10 % 10);
+        }
+        writer.write('0' + value % 10);
+    }
+
+    @Override
+    public void end() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
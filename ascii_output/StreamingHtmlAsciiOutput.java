@@ -0,0 +1,221 @@
+package ascii_output;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Outputs ASCII art as an HTML page, writing each row through a buffered writer as soon
+ * as it is complete.
+ * A page written to a file is written to the file name with the suffix .part, and only
+ * replaces the file at end(); if the output is closed before, the partial page is
+ * deleted, so a failed render never leaves a truncated page behind.
+ * Rows in color are written as spans of one color each. A span runs until the color
+ * changes, across row ends too, so runs of equal color cost one tag pair however long
+ * they are.
+ */
+public class StreamingHtmlAsciiOutput implements ColorRowAsciiOutput {
+
+    /**
+     * The digits of hexadecimal colors.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /**
+     * The suffix of the file a page is written to until it is complete.
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * The file to write each image to, or null to write to a given writer.
+     */
+    private final String filename;
+    /**
+     * The font of the page.
+     */
+    private final String fontName;
+    /**
+     * The writer of the current image.
+     */
+    private Writer writer;
+    /**
+     * The file the current image is written to until it is complete, or null if no
+     * image is being written to a file.
+     */
+    private Path partFile;
+    /**
+     * The color of the open span, or -1 if no span is open.
+     */
+    private int spanColor = -1;
+
+    /**
+     * Constructs an output that writes each image to a file, replacing its contents.
+     *
+     * @param filename The name of the HTML file.
+     * @param fontName The font of the page.
+     */
+    public StreamingHtmlAsciiOutput(String filename, String fontName) {
+        this.filename = filename;
+        this.fontName = fontName;
+    }
+
+    /**
+     * Constructs an output that writes to a writer, which is flushed but not closed. The
+     * writer belongs to the caller, so a page that is closed before its end stays
+     * truncated there.
+     *
+     * @param writer The writer.
+     * @param fontName The font of the page.
+     */
+    public StreamingHtmlAsciiOutput(Writer writer, String fontName) {
+        this.filename = null;
+        this.fontName = fontName;
+        this.writer = writer;
+    }
+
+    @Override
+    public void begin(int rows, int cols) {
+        close();
+        try {
+            if (filename != null) {
+                partFile = Paths.get(filename + PART_SUFFIX);
+                writer = Files.newBufferedWriter(partFile, StandardCharsets.UTF_8);
+            }
+            writer.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n" +
+                    "<title>ASCII Art</title>\n</head>\n<body style=\"margin:0px;padding:0px;\">\n" +
+                    "<pre style=\"font-family: '" + fontName +
+                    "';font-size:0.5em;line-height:0.5em;\">\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void row(char[] row) {
+        try {
+            closeSpan();
+            for (char c : row) {
+                writeChar(c);
+            }
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void row(char[] row, int[] colors, int offset) {
+        try {
+            for (int j = 0; j < row.length; j++) {
+                int color = colors[offset + j];
+                if (color != spanColor) {
+                    closeSpan();
+                    writer.write("<span style=\"color:#");
+                    for (int shift = 20; shift >= 0; shift -= 4) {
+                        writer.write(HEX_DIGITS[(color >> shift) & 0xF]);
+                    }
+                    writer.write("\">");
+                    spanColor = color;
+                }
+                writeChar(row[j]);
+            }
+            writer.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a character, escaped for HTML.
+     *
+     * @param c The character.
+     * @throws IOException If the writer fails.
+     */
+    private void writeChar(char c) throws IOException {
+        switch (c) {
+            case '<': writer.write("&lt;"); break;
+            case '>': writer.write("&gt;"); break;
+            case '&': writer.write("&amp;"); break;
+            default: writer.write(c); break;
+        }
+    }
+
+    /**
+     * Closes the open span, if there is one.
+     *
+     * @throws IOException If the writer fails.
+     */
+    private void closeSpan() throws IOException {
+        if (spanColor >= 0) {
+            writer.write("</span>");
+            spanColor = -1;
+        }
+    }
+
+    @Override
+    public void end() {
+        try {
+            closeSpan();
+            writer.write("</pre>\n</body>\n</html>\n");
+            if (filename != null) {
+                writer.close();
+                writer = null;
+                moveIntoPlace(partFile, Paths.get(filename));
+                partFile = null;
+            } else {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Abandons the page being written, if end() was not reached: a page written to a
+     * file is closed and deleted, and a page written to a writer is left as it is.
+     * Errors are ignored, since this runs after a failure.
+     */
+    @Override
+    public void close() {
+        spanColor = -1;
+        if (partFile == null) {
+            return;
+        }
+        // The writer is null if it could not be opened, or was closed by end() before
+        // the page could be moved into place.
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // The partial page is deleted below anyway.
+            }
+            writer = null;
+        }
+        try {
+            Files.deleteIfExists(partFile);
+        } catch (IOException e) {
+            // Nothing else can be done; the .part suffix marks the file as incomplete.
+        }
+        partFile = null;
+    }
+
+    /**
+     * Replaces a file with a completed page, atomically where the file system allows it.
+     *
+     * @param source The completed page.
+     * @param target The file.
+     * @throws IOException If the file cannot be replaced.
+     */
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
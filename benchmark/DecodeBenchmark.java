@@ -0,0 +1,88 @@
+package benchmark;
+
+import image.Image;
+import image.ImageProcess;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the stages of the pipeline that depend on the image only: decoding a PNG
+ * file, and building the summed-area tables of ImageProcess.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class DecodeBenchmark {
+
+    /**
+     * The side length of the synthetic image.
+     */
+    @Param({"256", "1024", "4096"})
+    public int size;
+
+    private Image image;
+    private File file;
+
+    /**
+     * Generates the image and encodes it to a temporary PNG file.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = SyntheticImages.syntheticImage(size);
+        file = File.createTempFile("benchmark", ".png");
+        ImageIO.write(SyntheticImages.toBufferedImage(image), "png", file);
+    }
+
+    /**
+     * Deletes the temporary file.
+     *
+     * @throws IOException If the file cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Decodes the image file.
+     *
+     * @return The decoded image.
+     * @throws IOException If the file cannot be read.
+     */
+    @Benchmark
+    public Image load() throws IOException {
+        return new Image(file.getPath());
+    }
+
+    /**
+     * Builds the summed-area tables of the image.
+     *
+     * @return The processed image.
+     */
+    @Benchmark
+    public ImageProcess process() {
+        return new ImageProcess(image);
+    }
+}
@@ -0,0 +1,65 @@
+package benchmark;
+
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks matching a brightness value to the closest character of a charset.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MatchBenchmark {
+
+    /**
+     * The number of brightness values matched by one invocation.
+     */
+    private static final int VALUES = 1024;
+
+    /**
+     * The charset: "digits" or "all".
+     */
+    @Param({"digits", "all"})
+    public String charset;
+
+    private SubImgCharMatcher matcher;
+
+    /**
+     * Creates the matcher.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        matcher = SyntheticImages.makeMatcher(charset);
+    }
+
+    /**
+     * Matches brightness values spread evenly over [0, 1]; the score is per value.
+     *
+     * @param blackhole The sink of the matched characters.
+     */
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void match(Blackhole blackhole) {
+        for (int i = 0; i < VALUES; i++) {
+            blackhole.consume(matcher.getCharByImageBrightness(i / (VALUES - 1.0)));
+        }
+    }
+}
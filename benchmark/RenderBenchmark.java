@@ -0,0 +1,144 @@
+package benchmark;
+
+import ascii_art.RenderContext;
+import image.ImageProcess;
+import image.TileGrid;
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks rendering a processed image: reading the brightness of every sub-image, a
+ * render with fresh buffers, as a one-off render does, a render that reuses one
+ * RenderContext, as the render server does, and the same render in bands of rows, as
+ * the shell streams its serial renders. Run with -prof gc for the bytes allocated per
+ * operation (gc.alloc.rate.norm); the context and bands benchmarks should allocate none.
+ * Resolutions span from tiles of half the image to tiles of a few pixels. A resolution
+ * that does not fit the image is skipped: its benchmarks return at once, so their
+ * scores, near zero, are to be ignored.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+
+    /**
+     * The number of rows of a band of the bands benchmark.
+     */
+    private static final int BAND_ROWS = 8;
+
+    /**
+     * The side length of the synthetic image.
+     */
+    @Param({"256", "1024", "4096"})
+    public int size;
+    /**
+     * The resolution of the ASCII art.
+     */
+    @Param({"2", "16", "128", "1024"})
+    public int resolution;
+    /**
+     * The charset: "digits" or "all".
+     */
+    @Param({"digits", "all"})
+    public String charset;
+
+    private ImageProcess imageProcess;
+    private SubImgCharMatcher matcher;
+    private RenderContext context;
+    /**
+     * Whether the resolution does not fit the image, so the trial is skipped.
+     */
+    private boolean skipped;
+
+    /**
+     * Processes the image, creates the matcher and renders once, so every benchmark
+     * starts from a cached brightness. Skips the trial if the resolution does not fit
+     * the image.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        skipped = !TileGrid.fits(size, size, resolution);
+        if (skipped) {
+            return;
+        }
+        imageProcess = new ImageProcess(SyntheticImages.syntheticImage(size));
+        matcher = SyntheticImages.makeMatcher(charset);
+        context = new RenderContext(imageProcess, resolution, matcher);
+        context.render();
+    }
+
+    /**
+     * Reads the brightness of every sub-image.
+     *
+     * @return The sum of the brightness.
+     */
+    @Benchmark
+    public double brightness() {
+        if (skipped) {
+            return 0;
+        }
+        double[] sum = new double[1];
+        imageProcess.forEachSubImage(resolution, 0, imageProcess.getSubImageRows(resolution),
+                (row, col, brightness) -> sum[0] += brightness);
+        return sum[0];
+    }
+
+    /**
+     * Renders with fresh buffers.
+     *
+     * @return The rendered characters.
+     */
+    @Benchmark
+    public char[] pipeline() {
+        if (skipped) {
+            return null;
+        }
+        return new RenderContext(imageProcess, resolution, matcher).render();
+    }
+
+    /**
+     * Renders into the buffers of one reused context.
+     *
+     * @return The rendered characters.
+     */
+    @Benchmark
+    public char[] context() {
+        if (skipped) {
+            return null;
+        }
+        return context.render();
+    }
+
+    /**
+     * Renders into the buffers of one reused context, a band of rows at a time.
+     *
+     * @return The rendered characters.
+     */
+    @Benchmark
+    public char[] bands() {
+        if (skipped) {
+            return null;
+        }
+        int rows = context.getRows();
+        for (int fromRow = 0; fromRow < rows; fromRow += BAND_ROWS) {
+            context.renderRows(fromRow, Math.min(fromRow + BAND_ROWS, rows));
+        }
+        return context.getChars();
+    }
+}
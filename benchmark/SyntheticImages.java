@@ -0,0 +1,82 @@
+package benchmark;
+
+import image.Image;
+import image_char_matching.SubImgCharMatcher;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * The inputs of the benchmarks: images generated in-process, so runs are reproducible on
+ * any host, and matchers over named charsets.
+ */
+final class SyntheticImages {
+
+    /**
+     * The digits charset, the default charset of the shell.
+     */
+    private static final char[] DIGITS = {'0','1','2','3','4','5','6','7','8','9'};
+    /**
+     * The seed of the synthetic images.
+     */
+    private static final long SEED = 42;
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * Generates a square image of smooth gradients with noise, so tiles of every size
+     * have varied brightness.
+     *
+     * @param size The side length of the image.
+     * @return The image.
+     */
+    static Image syntheticImage(int size) {
+        Random random = new Random(SEED);
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int base = (int) (127 + 100 * Math.sin(x * 8.0 / size) * Math.cos(y * 6.0 / size));
+                int red = Math.min(255, Math.max(0, base + random.nextInt(55) - 27));
+                int green = Math.min(255, Math.max(0, base + random.nextInt(55) - 27));
+                int blue = Math.min(255, Math.max(0, base + random.nextInt(55) - 27));
+                pixels[y * size + x] = 0xFF000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+        return new Image(pixels, size, size);
+    }
+
+    /**
+     * Copies an image into a BufferedImage, so it can be encoded.
+     *
+     * @param image The image.
+     * @return The BufferedImage.
+     */
+    static BufferedImage toBufferedImage(Image image) {
+        BufferedImage bufferedImage =
+                new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, image.getWidth(), image.getHeight(),
+                image.getRaster(), 0, image.getWidth());
+        return bufferedImage;
+    }
+
+    /**
+     * Creates a matcher for a named charset, and matches once so its index is built
+     * before any measurement.
+     *
+     * @param charset "digits" or "all".
+     * @return A matcher over the charset.
+     */
+    static SubImgCharMatcher makeMatcher(String charset) {
+        SubImgCharMatcher matcher = new SubImgCharMatcher(DIGITS);
+        if (charset.equals("all")) {
+            for (int i = 32; i < 127; i++) {
+                matcher.addChar((char) i);
+            }
+        } else if (!charset.equals("digits")) {
+            throw new IllegalArgumentException("Unknown charset " + charset);
+        }
+        matcher.getCharByImageBrightness(0);
+        return matcher;
+    }
+}
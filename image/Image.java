@@ -1,39 +1,141 @@
 package image;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * A package-private class of the package image.
+ * Pixels are stored as a packed ARGB raster in row-major order.
  * @author Dan Nirel
  */
 public class Image {
 
-    private final Color[][] pixelArray;
+    private final int[] pixels;
     private final int width;
     private final int height;
+    private final int subsampling;
 
     public Image(String filename) throws IOException {
-        BufferedImage im = ImageIO.read(new File(filename));
+        this(read(filename));
+    }
+
+    /**
+     * Constructs an image from a decoded BufferedImage, copying its pixels.
+     *
+     * @param im The decoded image.
+     */
+    public Image(BufferedImage im) {
         width = im.getWidth();
         height = im.getHeight();
+        pixels = im.getRGB(0, 0, width, height, null, 0, width);
+        subsampling = 1;
+    }
 
+    /**
+     * Decodes an image file.
+     *
+     * @param filename The name of the image file.
+     * @return The decoded image.
+     * @throws IOException If the file cannot be read or its format is not supported.
+     */
+    private static BufferedImage read(String filename) throws IOException {
+        BufferedImage im = ImageIO.read(new File(filename));
+        if (im == null) {
+            throw new IOException("Unsupported image format: " + filename);
+        }
+        return im;
+    }
 
-        pixelArray = new Color[height][width];
+    /**
+     * Reads an image file, decoding only as many pixels as ASCII art of the given
+     * resolution needs. Every subsampling-th pixel of every subsampling-th row is read,
+     * where the subsampling is the largest power of 2 that still leaves each sub-image at
+     * least k by k samples, with k = ceil(0.5 / maxError).
+     * maxError is a best-effort target of a heuristic, not a bound the result is
+     * guaranteed to meet: k * k independent random samples of a brightness in [0, 1]
+     * would have a standard error of at most 0.5 / k <= maxError, but the samples lie on a
+     * regular grid, so detail finer than the grid, such as thin lines or fine patterns,
+     * can be missed or aliased, and a sub-image's brightness can be off by more than
+     * maxError.
+     * Because the subsampling is a power of 2, the padded image and its grid of sub-images
+     * keep the same shape as those of the fully decoded image.
+     *
+     * @param filename The name of the image file.
+     * @param resolution The largest resolution the image will be converted at.
+     * @param maxError The sampling tolerance, which sets the number of samples per
+     *                 sub-image; smaller values read more pixels. Must be positive and finite.
+     * @throws IOException If the file cannot be read or its format is not supported.
+     * @throws IllegalArgumentException If the resolution is not positive, or maxError is not
+     *                                  positive and finite.
+     */
+    public Image(String filename, int resolution, double maxError) throws IOException {
+        if (resolution < 1) {
+            throw new IllegalArgumentException("Resolution must be at least 1: " + resolution);
+        }
+        if (!(maxError > 0) || Double.isInfinite(maxError)) {
+            throw new IllegalArgumentException("maxError must be positive and finite: " + maxError);
+        }
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new File(filename))) {
+            if (stream == null) {
+                throw new IOException("Cannot open " + filename);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + filename);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream);
+                int samplesPerSide = (int) Math.ceil(0.5 / maxError);
+                int subImageSize = ImageProcess.calcNewDimension(reader.getHeight(0)) / resolution;
+                int step = 1;
+                while (subImageSize / (step * 2) >= samplesPerSide) {
+                    step *= 2;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage im = reader.read(0, param);
+                width = im.getWidth();
+                height = im.getHeight();
+                pixels = im.getRGB(0, 0, width, height, null, 0, width);
+                subsampling = step;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public Image(Color[][] pixelArray, int width, int height) {
+        this.pixels = new int[width * height];
+        this.width = width;
+        this.height = height;
+        this.subsampling = 1;
         for (int i = 0; i < height; i++) {
             for (int j = 0; j < width; j++) {
-                pixelArray[i][j]=new Color(im.getRGB(j, i));
+                pixels[i * width + j] = pixelArray[i][j].getRGB();
             }
         }
     }
 
-    public Image(Color[][] pixelArray, int width, int height) {
-        this.pixelArray = pixelArray;
+    /**
+     * Constructs an image over a packed ARGB raster, without copying it.
+     *
+     * @param pixels The pixels in row-major order, width pixels per row.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     */
+    public Image(int[] pixels, int width, int height) {
+        this.pixels = pixels;
         this.width = width;
         this.height = height;
+        this.subsampling = 1;
     }
 
     public int getWidth() {
@@ -44,20 +146,43 @@ public class Image {
         return height;
     }
 
+    /**
+     * Returns the step between the pixels of the file that were decoded into this image.
+     *
+     * @return The subsampling of the image, 1 if every pixel was decoded.
+     */
+    public int getSubsampling() {
+        return subsampling;
+    }
+
     public Color getPixel(int x, int y) {
-        return pixelArray[x][y];
+        return new Color(pixels[x * width + y]);
+    }
+
+    /**
+     * Returns the packed RGB value of a pixel.
+     *
+     * @param x The row of the pixel.
+     * @param y The column of the pixel.
+     * @return The packed ARGB value of the pixel.
+     */
+    public int getRGB(int x, int y) {
+        return pixels[x * width + y];
+    }
+
+    /**
+     * Returns the backing raster of the image. The array is not copied and must not be
+     * modified by the caller.
+     *
+     * @return The pixels in row-major order, width pixels per row.
+     */
+    public int[] getRaster() {
+        return pixels;
     }
 
     public void saveImage(String fileName){
-        // Initialize BufferedImage, assuming Color[][] is already properly populated.
-        BufferedImage bufferedImage = new BufferedImage(pixelArray[0].length, pixelArray.length,
-                BufferedImage.TYPE_INT_RGB);
-        // Set each pixel of the BufferedImage to the color from the Color[][].
-        for (int x = 0; x < pixelArray.length; x++) {
-            for (int y = 0; y < pixelArray[x].length; y++) {
-                bufferedImage.setRGB(y, x, pixelArray[x][y].getRGB());
-            }
-        }
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, width, height, pixels, 0, width);
         File outputfile = new File(fileName+".jpeg");
         try {
             ImageIO.write(bufferedImage, "jpeg", outputfile);
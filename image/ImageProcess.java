@@ -1,8 +1,9 @@
 package image;
 
 import java.awt.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * This class provides functionality for processing images for ASCII art conversion.
@@ -14,44 +15,224 @@ public class ImageProcess  {
      */
     private Image image;
     /**
-     * The processed image with padding.
+     * The grey value of the white padding around the image.
      */
-    private Color[][] imProcessed;
+    static final double WHITE_GREY = greyValue(Color.WHITE.getRGB());
+    /**
+     * The height of the processed image.
+     */
+    private int newHeight;
+    /**
+     * The width of the processed image.
+     */
+    private int newWidth;
+    /**
+     * The number of padding rows above the original image.
+     */
+    private int heightPad;
+    /**
+     * The number of padding columns left of the original image.
+     */
+    private int widthPad;
+    /**
+     * The summed-area table of the grey value of the original image. Entry
+     * (row, col) of this (height + 1) x (width + 1) table holds the sum of the
+     * grey values of all pixels above and to the left of pixel (row, col).
+     */
+    private final double[] greySums;
+    /**
+     * The grey values of one row of the original image, scratch space of fillGreySums.
+     */
+    private final double[] rowGrey;
+    /**
+     * The largest number of pixels whose channel sum is sure to fit in 32 bits.
+     */
+    private static final int MAX_COLOR_PIXELS = (int) (0xFFFFFFFFL / 0xFF);
+    /**
+     * The summed-area tables of the red, green and blue channels of the original image,
+     * laid out like greySums, or null if color is not enabled. The entries are kept in
+     * 32 bits and wrap around on large images, which halves the memory and the time of
+     * filling them; the sum over a rectangle of at most MAX_COLOR_PIXELS pixels is still
+     * exact when read as unsigned.
+     */
+    private int[] redSums;
+    private int[] greenSums;
+    private int[] blueSums;
+    /**
+     * The largest number of resolutions whose brightness is cached.
+     */
+    private static final int MAX_CACHED_RESOLUTIONS = 4;
+    /**
+     * The brightness cache: the brightness of the sub-images of the resolutions that were
+     * asked for most recently, at most MAX_CACHED_RESOLUTIONS of them, or null in unused
+     * slots. Each resolution is read from the summed-area table on its own; the cache only
+     * saves repeated reads when the same resolution is rendered again. Looked up by a
+     * linear scan, so a lookup neither boxes nor allocates.
+     */
+    private final CachedBrightness[] brightnessCache = new CachedBrightness[MAX_CACHED_RESOLUTIONS];
+    /**
+     * The number of cache lookups so far, the clock of the least recently used eviction.
+     */
+    private long cacheLookups;
+    /**
+     * The generation of the pixels of the image, which update() advances. Rows of the
+     * brightness cache filled in an older generation are stale.
+     */
+    private volatile int generation = 1;
     /**
      * Constructs an ImageProcess object with the given image.
      *
      * @param im The image to be processed.
      */
     public ImageProcess(Image im) {
+        this(im, false);
+    }
+
+    /**
+     * Constructs an ImageProcess object with the given image, optionally keeping the
+     * color of the image for colored output.
+     *
+     * @param im The image to be processed.
+     * @param color Whether to keep the color of the image; see setColorEnabled.
+     */
+    public ImageProcess(Image im, boolean color) {
         this.image = im;
-        imProcessed = paddingImage(this.image);
+        paddingImage(this.image);
+        greySums = new double[(im.getHeight() + 1) * (im.getWidth() + 1)];
+        rowGrey = new double[im.getWidth()];
+        if (color) {
+            allocateColorSums();
+        }
+        fillGreySums();
+    }
 
+    /**
+     * Sets whether the color of the image is kept, so the average color of sub-images can
+     * be read with calcSubImgColor. The color sums are filled in the same pass over the
+     * pixels as the grey sums, so enabling color on an existing object repeats that pass
+     * once; enabling it in the constructor costs no extra pass.
+     *
+     * @param color Whether to keep the color of the image.
+     */
+    public synchronized void setColorEnabled(boolean color) {
+        if (color == isColorEnabled()) {
+            return;
+        }
+        if (color) {
+            allocateColorSums();
+            fillGreySums();
+        } else {
+            redSums = null;
+            greenSums = null;
+            blueSums = null;
+        }
+    }
+
+    /**
+     * Returns whether the color of the image is kept.
+     *
+     * @return True if calcSubImgColor can be used.
+     */
+    public synchronized boolean isColorEnabled() {
+        return redSums != null;
+    }
+
+    /**
+     * Allocates the summed-area tables of the color channels.
+     */
+    private void allocateColorSums() {
+        redSums = new int[greySums.length];
+        greenSums = new int[greySums.length];
+        blueSums = new int[greySums.length];
     }
 
     /**
-     * Pads the image to ensure it has dimensions that are powers of 2.
+     * Recomputes the brightness data after the pixels of the image changed in place, as
+     * they do in a stream of frames. The summed-area table is refilled in place and the
+     * rows of the brightness cache become stale, to be refilled in place when they are
+     * next asked for, so an update allocates nothing. The size of the image must not
+     * change, and no render of the image may run during an update.
+     */
+    public synchronized void update() {
+        fillGreySums();
+        if (generation == Integer.MAX_VALUE) {
+            // Row generations must never repeat, so the cache starts over.
+            Arrays.fill(brightnessCache, null);
+            generation = 1;
+        } else {
+            generation++;
+        }
+    }
+
+    /**
+     * Pads the image to ensure it has dimensions that are powers of 2. The padding is
+     * virtual: only the new dimensions and the offsets of the original image are kept,
+     * and the white margins are accounted for when sub-image brightness is calculated.
      *
      * @param im The image to be padded.
-     * @return The padded image.
      */
-    public Color[][] paddingImage(Image im) {
+    private void paddingImage(Image im) {
         Vector<Integer> newVecDimensions = newDimensions();
-        Color[][] newPixelsArray = new Color[newVecDimensions.get(0)][newVecDimensions.get(1)];
-        int heightPad = (newVecDimensions.get(0) - im.getHeight())/2;
-        int widthPad = (newVecDimensions.get(1) - im.getWidth())/2;
-        for (int i = 0; i < im.getHeight(); i++) {
-            for (int j = 0; j < im.getWidth(); j++) {
-                newPixelsArray[i + heightPad][j + widthPad] = im.getPixel(i, j);
-            }
-        }
-        for (int i = 0; i < newPixelsArray.length; i++) {
-            for (int j = 0; j < newPixelsArray[0].length; j++) {
-                if (newPixelsArray[i][j] == null) {
-                    newPixelsArray[i][j] = Color.WHITE;
+        this.newHeight = newVecDimensions.get(0);
+        this.newWidth = newVecDimensions.get(1);
+        this.heightPad = (newHeight - im.getHeight())/2;
+        this.widthPad = (newWidth - im.getWidth())/2;
+    }
+
+    /**
+     * Fills the summed-area table of the grey value of the original image, so the
+     * brightness of any sub-image can be read in constant time. The grey values of each
+     * row are computed by the luminance kernel, then accumulated. The table is
+     * (height + 1) x (width + 1) in row-major order, with a first row and column of zeros.
+     * If color is enabled, the tables of the color channels are filled in the same pass.
+     */
+    private void fillGreySums() {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] raster = image.getRaster();
+        int stride = width + 1;
+        double[] sums = greySums;
+        LuminanceKernel kernel = LuminanceKernel.getDefault();
+        int[] reds = redSums;
+        int[] greens = greenSums;
+        int[] blues = blueSums;
+        for (int i = 0; i < height; i++) {
+            kernel.greyValues(raster, i * width, width, rowGrey);
+            double rowSum = 0;
+            if (reds == null) {
+                for (int j = 0; j < width; j++) {
+                    rowSum += rowGrey[j];
+                    sums[(i + 1) * stride + j + 1] = sums[i * stride + j + 1] + rowSum;
                 }
+                continue;
+            }
+            int rowRed = 0;
+            int rowGreen = 0;
+            int rowBlue = 0;
+            for (int j = 0; j < width; j++) {
+                int pixel = raster[i * width + j];
+                rowSum += rowGrey[j];
+                rowRed += (pixel >> 16) & 0xFF;
+                rowGreen += (pixel >> 8) & 0xFF;
+                rowBlue += pixel & 0xFF;
+                int below = (i + 1) * stride + j + 1;
+                int above = i * stride + j + 1;
+                sums[below] = sums[above] + rowSum;
+                reds[below] = reds[above] + rowRed;
+                greens[below] = greens[above] + rowGreen;
+                blues[below] = blues[above] + rowBlue;
             }
         }
-        return newPixelsArray;
+    }
+
+    /**
+     * Calculates the grey value of a pixel.
+     *
+     * @param pixel The pixel, packed as ARGB.
+     * @return The grey value of the pixel, between 0 and 255.
+     */
+    static double greyValue(int pixel) {
+        return ((pixel >> 16) & 0xFF)*0.2126 + ((pixel >> 8) & 0xFF)*0.7152 + (pixel & 0xFF)*0.0722;
     }
 
     /**
@@ -60,7 +241,7 @@ public class ImageProcess  {
      * @return The height of the processed image.
      */
     public int getNewHeight() {
-        return imProcessed.length;
+        return newHeight;
     }
 
     /**
@@ -69,7 +250,7 @@ public class ImageProcess  {
      * @return The width of the processed image.
      */
     public int getNewWidth() {
-        return imProcessed[0].length;
+        return newWidth;
     }
 
     /**
@@ -92,7 +273,7 @@ public class ImageProcess  {
      * @param dim The original dimension.
      * @return The new dimension that is a power of 2.
      */
-    private int calcNewDimension(int dim) {
+    static int calcNewDimension(int dim) {
         int temp = dim;
         while (temp % 2 == 0) {
             temp = temp / 2;
@@ -109,60 +290,262 @@ public class ImageProcess  {
     }
 
     /**
-     * Creates sub-images from the processed image.
+     * Gets the size of the sub-images for the given resolution.
      *
      * @param subImageResolution The resolution of the sub-images.
-     * @return An ArrayList containing the sub-images.
-     */
-    public ArrayList<Color[][]> makeSubImages (int subImageResolution) {
-        int cols = this.imProcessed.length/subImageResolution; // number of columns of subImage
-        int rows = this.imProcessed[0].length/cols;
-        // cols = subResolution
-        ArrayList<Color[][]> subImageArray = new ArrayList<>();
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < subImageResolution; j++) {
-                int startRow = i * cols;
-                int startCol = j * cols;
-                subImageArray.add(subImage(this.imProcessed, startRow, startCol, cols));
-            }
+     * @return The side length of each sub-image, in pixels.
+     */
+    public int getSubImageSize(int subImageResolution) {
+        return this.newHeight / subImageResolution;
+    }
+
+    /**
+     * Calculates the brightness of a square sub-image of the processed image, using four
+     * lookups in the summed-area table.
+     *
+     * @param row The starting row of the sub-image.
+     * @param col The starting column of the sub-image.
+     * @param size The size of the sub-image.
+     * @return The brightness value of the sub-image.
+     */
+    public double calcSubImgBrightness(int row, int col, int size) {
+        // Clip the sub-image to the original image; the rest of it is white padding.
+        int top = clamp(row - heightPad, image.getHeight());
+        int bottom = clamp(row + size - heightPad, image.getHeight());
+        int left = clamp(col - widthPad, image.getWidth());
+        int right = clamp(col + size - widthPad, image.getWidth());
+        int stride = image.getWidth() + 1;
+        double sumGreyPixels = greySums[bottom * stride + right]
+                - greySums[top * stride + right]
+                - greySums[bottom * stride + left]
+                + greySums[top * stride + left];
+        long paddingPixels = (long) size * size - (long) (bottom - top) * (right - left);
+        sumGreyPixels += paddingPixels * WHITE_GREY;
+        return (sumGreyPixels / (size * size)) / 255;
+    }
+
+    /**
+     * Calculates the average color of a square sub-image of the processed image, using
+     * four lookups in the summed-area table of each color channel. The padding counts as
+     * white, as it does for brightness. Color must be enabled.
+     *
+     * @param row The starting row of the sub-image.
+     * @param col The starting column of the sub-image.
+     * @param size The size of the sub-image.
+     * @return The average color of the sub-image, packed as RGB.
+     */
+    public int calcSubImgColor(int row, int col, int size) {
+        int top = clamp(row - heightPad, image.getHeight());
+        int bottom = clamp(row + size - heightPad, image.getHeight());
+        int left = clamp(col - widthPad, image.getWidth());
+        int right = clamp(col + size - widthPad, image.getWidth());
+        long pixels = (long) size * size;
+        // White padding, plus half a pixel count so the averages round to nearest.
+        long padding = (pixels - (long) (bottom - top) * (right - left)) * 0xFF + pixels / 2;
+        long red = channelSum(redSums, top, bottom, left, right);
+        long green = channelSum(greenSums, top, bottom, left, right);
+        long blue = channelSum(blueSums, top, bottom, left, right);
+        return (int) ((red + padding) / pixels) << 16 | (int) ((green + padding) / pixels) << 8
+                | (int) ((blue + padding) / pixels);
+    }
+
+    /**
+     * Sums a color channel over a rectangle of the original image. Rectangles too large
+     * for one 32-bit sum are summed in bands of rows.
+     *
+     * @param sums The summed-area table of the channel.
+     * @param top The first row of the rectangle (inclusive).
+     * @param bottom The last row of the rectangle (exclusive).
+     * @param left The first column of the rectangle (inclusive).
+     * @param right The last column of the rectangle (exclusive).
+     * @return The sum of the channel over the rectangle.
+     */
+    private long channelSum(int[] sums, int top, int bottom, int left, int right) {
+        int stride = image.getWidth() + 1;
+        int band = Math.max(1, MAX_COLOR_PIXELS / Math.max(1, right - left));
+        long total = 0;
+        for (int from = top; from < bottom; from += band) {
+            int to = Math.min(bottom, from + band);
+            total += Integer.toUnsignedLong(sums[to * stride + right] - sums[from * stride + right]
+                    - sums[to * stride + left] + sums[from * stride + left]);
         }
-        return subImageArray;
+        return total;
     }
 
     /**
-     * Extracts a sub-image from the full image.
+     * Calculates the average color of every sub-image in one row of the grid of
+     * sub-images. Color must be enabled.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @param row The row of sub-images.
+     * @param colors The array that receives the colors, packed as RGB.
+     * @param offset The position of the color of the first sub-image in colors.
+     */
+    public void calcRowColors(int subImageResolution, int row, int[] colors, int offset) {
+        int size = getSubImageSize(subImageResolution);
+        for (int j = 0; j < subImageResolution; j++) {
+            colors[offset + j] = calcSubImgColor(row * size, j * size, size);
+        }
+    }
+
+    /**
+     * Calculates the brightness of a grid of equal cells covering a square sub-image of
+     * the processed image. Sub-images smaller than the grid have cells of one pixel, each
+     * repeated over several grid positions.
      *
-     * @param fullImage The full image.
      * @param row The starting row of the sub-image.
      * @param col The starting column of the sub-image.
      * @param size The size of the sub-image.
-     * @return The extracted sub-image.
+     * @param grid The number of cells on each side of the grid.
+     * @param cells The array that receives the brightness of the grid x grid cells, in
+     *              row-major order.
      */
-    private Color[][] subImage (Color[][] fullImage, int row, int col, int size) {
-        Color[][] subImage = new Color[size][size];
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                subImage[i][j] = fullImage[row + i][col + j];
+    public void calcSubImgCells(int row, int col, int size, int grid, double[] cells) {
+        int cellSize = Math.max(1, size / grid);
+        int cellsPerSide = size / cellSize;
+        for (int y = 0; y < grid; y++) {
+            int cellRow = row + y * cellsPerSide / grid * cellSize;
+            for (int x = 0; x < grid; x++) {
+                int cellCol = col + x * cellsPerSide / grid * cellSize;
+                cells[y * grid + x] = calcSubImgBrightness(cellRow, cellCol, cellSize);
             }
         }
-        return subImage;
     }
 
     /**
-     * Calculates the brightness of a sub-image.
+     * Clamps a coordinate of the original image to the range [0, limit].
      *
-     * @param subImg The sub-image for which to calculate brightness.
-     * @return The brightness value of the sub-image.
+     * @param value The coordinate to clamp.
+     * @param limit The upper bound.
+     * @return The clamped coordinate.
+     */
+    private static int clamp(int value, int limit) {
+        return Math.max(0, Math.min(value, limit));
+    }
+
+    /**
+     * Gets the number of rows in the grid of sub-images for the given resolution.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @return The number of rows of sub-images.
+     */
+    public int getSubImageRows(int subImageResolution) {
+        return this.newWidth / getSubImageSize(subImageResolution);
+    }
+
+    /**
+     * Returns the brightness of every sub-image of a resolution; see getBrightnessRows.
+     * Every row is filled before this returns.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @return The brightness of the sub-images, getSubImageRows(subImageResolution) rows of
+     * subImageResolution each, in row-major order.
+     */
+    public double[] getBrightness(int subImageResolution) {
+        return getBrightnessRows(subImageResolution, 0, getSubImageRows(subImageResolution));
+    }
+
+    /**
+     * Returns the cached brightness of the sub-images of a resolution, with a band of rows
+     * filled in. Each row is read from the summed-area table, as calcSubImgBrightness
+     * does, the first time it is asked for after the resolution was cached or the image
+     * was updated, so every resolution reads the same values as a direct read would.
+     * Only looking the resolution up in the cache holds the lock of this object, so bands
+     * of rows can be filled by several threads at once, and a render that streams its rows
+     * only fills the rows it has reached. A row asked for by two threads at once may be
+     * filled by both, with the same values.
+     * The returned array is shared and must not be modified; rows outside the band may not
+     * be filled yet.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @param fromRow The first row of sub-images to fill (inclusive).
+     * @param toRow The last row of sub-images to fill (exclusive).
+     * @return The brightness of the sub-images, getSubImageRows(subImageResolution) rows of
+     * subImageResolution each, in row-major order.
      */
-    public double calcSubImgBrightness(Color[][] subImg) {
-        double sumGreyPixels = 0;
-        for (Color[] colors : subImg) {
-            for (int col = 0; col < subImg.length; col++) {
-                Color pixel = colors[col];
-                double greyPixel = pixel.getRed()*0.2126 + pixel.getGreen()*0.7152 + pixel.getBlue()*0.0722;
-                sumGreyPixels += greyPixel;
+    public double[] getBrightnessRows(int subImageResolution, int fromRow, int toRow) {
+        CachedBrightness cached = findCached(subImageResolution);
+        int current = generation;
+        for (int i = fromRow; i < toRow; i++) {
+            if (cached.rowGenerations.get(i) != current) {
+                int size = cached.size;
+                for (int j = 0; j < subImageResolution; j++) {
+                    cached.values[i * subImageResolution + j] = calcSubImgBrightness(i * size, j * size, size);
+                }
+                cached.rowGenerations.set(i, current);
+            }
+        }
+        return cached.values;
+    }
+
+    /**
+     * Looks up the cached brightness of a resolution, adding it to the cache if needed and
+     * evicting the least recently used resolution when MAX_CACHED_RESOLUTIONS are cached.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @return The cached brightness, whose rows may not be filled yet.
+     */
+    private synchronized CachedBrightness findCached(int subImageResolution) {
+        int victim = 0;
+        for (int k = 0; k < brightnessCache.length; k++) {
+            CachedBrightness cached = brightnessCache[k];
+            if (cached != null && cached.resolution == subImageResolution) {
+                cached.lastUse = ++cacheLookups;
+                return cached;
+            }
+            if (brightnessCache[victim] != null &&
+                    (cached == null || cached.lastUse < brightnessCache[victim].lastUse)) {
+                victim = k;
+            }
+        }
+        CachedBrightness cached = new CachedBrightness(subImageResolution, getSubImageSize(subImageResolution),
+                getSubImageRows(subImageResolution));
+        cached.lastUse = ++cacheLookups;
+        brightnessCache[victim] = cached;
+        return cached;
+    }
+
+    /**
+     * An entry of the brightness cache: the brightness of every sub-image of one
+     * resolution, and the generation of the image each row was filled in.
+     */
+    private static final class CachedBrightness {
+        private final int resolution;
+        private final int size;
+        private final double[] values;
+        /**
+         * The generation in which each row was filled, or 0 if it never was.
+         */
+        private final AtomicIntegerArray rowGenerations;
+        /**
+         * The value of cacheLookups when the entry was last looked up.
+         */
+        private long lastUse;
+
+        CachedBrightness(int resolution, int size, int rows) {
+            this.resolution = resolution;
+            this.size = size;
+            this.values = new double[rows * resolution];
+            this.rowGenerations = new AtomicIntegerArray(rows);
+        }
+    }
+
+    /**
+     * Visits the sub-images in a band of rows of the grid of sub-images, in row-major
+     * order, reading their brightness from the brightness cache.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @param fromRow The first row of sub-images to visit (inclusive).
+     * @param toRow The last row of sub-images to visit (exclusive).
+     * @param visitor The visitor that receives the brightness of each sub-image.
+     */
+    public void forEachSubImage(int subImageResolution, int fromRow, int toRow,
+                                SubImageVisitor visitor) {
+        double[] brightness = getBrightnessRows(subImageResolution, fromRow, toRow);
+        for (int i = fromRow; i < toRow; i++) {
+            for (int j = 0; j < subImageResolution; j++) {
+                visitor.visit(i, j, brightness[i * subImageResolution + j]);
             }
         }
-        return (sumGreyPixels / (subImg.length * subImg.length)) / 255;
     }
 }
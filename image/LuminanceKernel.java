@@ -0,0 +1,42 @@
+package image;
+
+/**
+ * Computes the grey values of runs of packed ARGB pixels, the innermost loop of building
+ * an image's brightness data.
+ * The kernel is chosen once per JVM by the system property ascii_art.luminance:
+ * "scalar" for the plain loop, "vector" for the SIMD kernel of the incubating Vector API,
+ * or "auto" (the default) for the SIMD kernel when it was compiled, from the simd source
+ * root, and the JVM runs with --add-modules jdk.incubator.vector, and the scalar loop
+ * otherwise.
+ * Both kernels evaluate r*0.2126 + g*0.7152 + b*0.0722 in double precision, in the same
+ * order and without fused multiply-adds, so their grey values are identical: the epsilon
+ * between them is 0.
+ */
+public interface LuminanceKernel {
+
+    /**
+     * Writes the grey value of each pixel of a run, between 0 and 255.
+     *
+     * @param pixels The packed ARGB pixels.
+     * @param offset The index of the first pixel of the run.
+     * @param length The number of pixels in the run.
+     * @param grey The array that receives the grey values, from index 0.
+     */
+    void greyValues(int[] pixels, int offset, int length, double[] grey);
+
+    /**
+     * Returns the name of the kernel, as accepted by ascii_art.luminance.
+     *
+     * @return The name of the kernel.
+     */
+    String getName();
+
+    /**
+     * Returns the kernel selected by the system property ascii_art.luminance.
+     *
+     * @return The selected kernel.
+     */
+    static LuminanceKernel getDefault() {
+        return ScalarLuminanceKernel.DEFAULT;
+    }
+}
@@ -0,0 +1,77 @@
+package image;
+
+/**
+ * The scalar luminance kernel, which converts one pixel at a time. It also selects the
+ * kernel used by the JVM, since it is the fallback of every other kernel.
+ */
+final class ScalarLuminanceKernel implements LuminanceKernel {
+
+    /**
+     * The name of the SIMD kernel class, which is only loaded when the Vector API is present
+     * and the class was compiled from the simd source root.
+     */
+    private static final String VECTOR_KERNEL = "image.VectorLuminanceKernel";
+    /**
+     * The kernel selected by the system property ascii_art.luminance.
+     */
+    static final LuminanceKernel DEFAULT = select(System.getProperty("ascii_art.luminance", "auto"));
+
+    @Override
+    public void greyValues(int[] pixels, int offset, int length, double[] grey) {
+        for (int i = 0; i < length; i++) {
+            grey[i] = ImageProcess.greyValue(pixels[offset + i]);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * Selects a kernel by name.
+     *
+     * @param name "scalar", "vector" or "auto".
+     * @return The kernel.
+     * @throws IllegalArgumentException If the name is unknown, or if "vector" is asked for
+     *                                  and the Vector API is not available.
+     */
+    static LuminanceKernel select(String name) {
+        switch (name) {
+            case "scalar":
+                return new ScalarLuminanceKernel();
+            case "vector": {
+                LuminanceKernel kernel = loadVectorKernel();
+                if (kernel == null) {
+                    throw new IllegalArgumentException(
+                            "The vector luminance kernel needs --add-modules jdk.incubator.vector"
+                            + " and the classes of the simd source root");
+                }
+                return kernel;
+            }
+            case "auto": {
+                LuminanceKernel kernel = loadVectorKernel();
+                return kernel == null ? new ScalarLuminanceKernel() : kernel;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown luminance kernel " + name);
+        }
+    }
+
+    /**
+     * Loads the SIMD kernel, which links against jdk.incubator.vector.
+     *
+     * @return The SIMD kernel, or null if the Vector API or the kernel class is not available.
+     */
+    private static LuminanceKernel loadVectorKernel() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (LuminanceKernel) Class.forName(VECTOR_KERNEL)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package image;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * This class processes an image file for ASCII art conversion without holding the whole
+ * image in memory. The file is decoded once, from top to bottom, and each row is reduced
+ * to the brightness sums of its sub-images as soon as it is decoded, so only a few rows
+ * of pixels are held at a time.
+ * The image is padded to dimensions that are powers of 2 exactly like in ImageProcess,
+ * so both classes produce the same grid of sub-images.
+ * Only PNG and JPEG are decoded this way; other formats, and interlaced PNG and
+ * progressive JPEG, which are not decoded top to bottom in one pass, are decoded whole,
+ * once.
+ */
+public class StreamingImageProcess {
+
+    /**
+     * The number of rows of pixels kept while decoding.
+     */
+    private static final int RING_ROWS = 16;
+    /**
+     * The formats whose readers write rows through the Raster API, so they can decode into
+     * a ring of rows, and report each row as it is decoded.
+     */
+    private static final Set<String> ROW_FORMATS = Set.of("png", "jpeg");
+
+    /**
+     * The image file.
+     */
+    private final File file;
+    /**
+     * The width of the original image.
+     */
+    private final int width;
+    /**
+     * The height of the original image.
+     */
+    private final int height;
+    /**
+     * The height of the processed image.
+     */
+    private final int newHeight;
+    /**
+     * The width of the processed image.
+     */
+    private final int newWidth;
+
+    /**
+     * Constructs a StreamingImageProcess over an image file. Only the header of the file
+     * is read.
+     *
+     * @param filename The name of the image file.
+     * @throws IOException If the file cannot be read or its format is not supported.
+     */
+    public StreamingImageProcess(String filename) throws IOException {
+        this.file = new File(filename);
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = openReader(stream);
+            try {
+                this.width = reader.getWidth(0);
+                this.height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+        this.newHeight = ImageProcess.calcNewDimension(height);
+        this.newWidth = ImageProcess.calcNewDimension(width);
+    }
+
+    /**
+     * Gets the height of the processed image.
+     *
+     * @return The height of the processed image.
+     */
+    public int getNewHeight() {
+        return newHeight;
+    }
+
+    /**
+     * Gets the width of the processed image.
+     *
+     * @return The width of the processed image.
+     */
+    public int getNewWidth() {
+        return newWidth;
+    }
+
+    /**
+     * Gets the size of the sub-images for the given resolution.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @return The side length of each sub-image, in pixels.
+     */
+    public int getSubImageSize(int subImageResolution) {
+        return this.newHeight / subImageResolution;
+    }
+
+    /**
+     * Gets the number of rows in the grid of sub-images for the given resolution.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @return The number of rows of sub-images.
+     */
+    public int getSubImageRows(int subImageResolution) {
+        return this.newWidth / getSubImageSize(subImageResolution);
+    }
+
+    /**
+     * Reads the image file and visits every sub-image, in row-major order.
+     * The file is decoded once, from top to bottom, into a destination that keeps only
+     * the last RING_ROWS rows of the image; each row is reduced as soon as the reader
+     * reports it. Other formats than PNG and JPEG, and interlaced PNG and progressive
+     * JPEG, are decoded whole, once.
+     *
+     * @param subImageResolution The resolution of the sub-images.
+     * @param visitor The visitor that receives the brightness of each sub-image.
+     * @throws IOException If the file cannot be read.
+     */
+    public void forEachSubImage(int subImageResolution, SubImageVisitor visitor) throws IOException {
+        StripReducer reducer = new StripReducer(subImageResolution, visitor);
+        if (!readSequentially(reducer)) {
+            reducer.restart();
+            readWhole(reducer);
+        }
+        reducer.finish();
+    }
+
+    /**
+     * Decodes the image file once into a ring of rows and reduces each row as the reader
+     * reports it.
+     *
+     * @param reducer The reducer that receives the rows.
+     * @return true if every row was reduced, false if the format cannot be decoded this
+     *         way; the reducer may then have reduced some of the rows.
+     * @throws IOException If the file cannot be read.
+     */
+    private boolean readSequentially(StripReducer reducer) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = openReader(stream);
+            try {
+                if (!ROW_FORMATS.contains(reader.getFormatName().toLowerCase(Locale.ROOT)) ||
+                        !isSinglePass(reader)) {
+                    return false;
+                }
+                ImageTypeSpecifier type = reader.getImageTypes(0).next();
+                WritableRaster ring = createRingRaster(type.getSampleModel(width, height));
+                if (ring == null) {
+                    return false;
+                }
+                ColorModel colorModel = type.getColorModel();
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(new BufferedImage(colorModel, ring,
+                        colorModel.isAlphaPremultiplied(), null));
+                RowListener listener = new RowListener(reducer);
+                reader.addIIOReadUpdateListener(listener);
+                reader.read(0, param);
+                return listener.nextRow == height;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes the whole image file and reduces its rows.
+     *
+     * @param reducer The reducer that receives the rows.
+     * @throws IOException If the file cannot be read.
+     */
+    private void readWhole(StripReducer reducer) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = openReader(stream);
+            try {
+                BufferedImage image = reader.read(0);
+                for (int y = 0; y < height; y++) {
+                    reducer.row(image, y);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Checks, from the standard metadata of the image, whether it is decoded in a single
+     * pass.
+     *
+     * @param reader The reader of the image.
+     * @return true if the image is decoded in a single pass.
+     * @throws IOException If the metadata cannot be read.
+     */
+    private static boolean isSinglePass(ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+            return false;
+        }
+        Node node = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName).getFirstChild();
+        for (; node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals("Compression")) {
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    if (child.getNodeName().equals("NumProgressiveScans")) {
+                        Node value = child.getAttributes().getNamedItem("value");
+                        return value != null && value.getNodeValue().equals("1");
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a raster with the dimensions of the image that only stores RING_ROWS rows:
+     * row y is stored where row y % RING_ROWS is.
+     *
+     * @param model The sample model of the image.
+     * @return The raster, or null if the layout of the sample model is not supported.
+     */
+    private WritableRaster createRingRaster(SampleModel model) {
+        int stride = getScanlineStride(model);
+        SampleModel ringModel = model.createCompatibleSampleModel(width, RING_ROWS + 1);
+        if (stride <= 0 || getScanlineStride(ringModel) != stride ||
+                (long) stride * height > Integer.MAX_VALUE) {
+            return null;
+        }
+        DataBuffer ring = new RingDataBuffer(ringModel.createDataBuffer(), stride * RING_ROWS, stride * height);
+        return Raster.createWritableRaster(model, ring, null);
+    }
+
+    /**
+     * Returns the distance, in data elements, between the starts of two rows of a
+     * sample model.
+     *
+     * @param model The sample model.
+     * @return The scanline stride, or 0 if the layout of the sample model is not known.
+     */
+    private static int getScanlineStride(SampleModel model) {
+        if (model instanceof ComponentSampleModel) {
+            return ((ComponentSampleModel) model).getScanlineStride();
+        }
+        if (model instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) model).getScanlineStride();
+        }
+        if (model instanceof MultiPixelPackedSampleModel) {
+            return ((MultiPixelPackedSampleModel) model).getScanlineStride();
+        }
+        return 0;
+    }
+
+    /**
+     * Opens a reader for the image in a stream.
+     *
+     * @param stream The stream of the image file.
+     * @return A reader whose input is the stream.
+     * @throws IOException If the format of the image is not supported.
+     */
+    private ImageReader openReader(ImageInputStream stream) throws IOException {
+        if (stream == null) {
+            throw new IOException("Cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(stream);
+        return reader;
+    }
+
+    /**
+     * Reduces the rows of the image, in order, to the brightness of the sub-images, and
+     * visits each row of sub-images once its last image row was reduced.
+     */
+    private final class StripReducer {
+        private final int resolution;
+        private final SubImageVisitor visitor;
+        private final int size;
+        private final int rows;
+        private final int heightPad;
+        private final int widthPad;
+        private final double[] tileSums;
+        private final int[] tileWidths;
+        /**
+         * The number of columns that are part of a sub-image; the columns beyond the last
+         * sub-image column are not.
+         */
+        private final int usedWidth;
+        private final int[] rowPixels;
+        private final double[] rowGrey;
+        private final LuminanceKernel kernel = LuminanceKernel.getDefault();
+        /**
+         * The row of sub-images whose image rows are being reduced.
+         */
+        private int nextTileRow;
+        /**
+         * The number of rows of sub-images that were already visited before a restart.
+         */
+        private int visitedRows;
+
+        StripReducer(int resolution, SubImageVisitor visitor) {
+            this.resolution = resolution;
+            this.visitor = visitor;
+            this.size = getSubImageSize(resolution);
+            this.rows = getSubImageRows(resolution);
+            this.heightPad = (newHeight - height) / 2;
+            this.widthPad = (newWidth - width) / 2;
+            this.tileSums = new double[resolution];
+            this.tileWidths = new int[resolution];
+            for (int j = 0; j < resolution; j++) {
+                tileWidths[j] = Math.max(0, Math.min(j * size + size - widthPad, width) -
+                        Math.max(j * size - widthPad, 0));
+            }
+            this.usedWidth = Math.max(0, Math.min(width, resolution * size - widthPad));
+            this.rowPixels = new int[usedWidth];
+            this.rowGrey = new double[usedWidth];
+        }
+
+        /**
+         * Reduces one row of the image. Rows must be reduced from top to bottom.
+         *
+         * @param image The image holding the row.
+         * @param y The row.
+         */
+        void row(BufferedImage image, int y) {
+            int tileRow = (y + heightPad) / size;
+            if (tileRow >= rows) {
+                return;
+            }
+            while (nextTileRow < tileRow) {
+                visitNextRow();
+            }
+            if (usedWidth == 0) {
+                return;
+            }
+            image.getRGB(0, y, usedWidth, 1, rowPixels, 0, usedWidth);
+            kernel.greyValues(rowPixels, 0, usedWidth, rowGrey);
+            for (int x = 0; x < usedWidth; x++) {
+                tileSums[(x + widthPad) / size] += rowGrey[x];
+            }
+        }
+
+        /**
+         * Starts over from the top of the image. The rows of sub-images that were already
+         * visited are reduced again, but not visited again.
+         */
+        void restart() {
+            visitedRows = Math.max(visitedRows, nextTileRow);
+            nextTileRow = 0;
+            Arrays.fill(tileSums, 0);
+        }
+
+        /**
+         * Visits the remaining rows of sub-images, after the last row of the image.
+         */
+        void finish() {
+            while (nextTileRow < rows) {
+                visitNextRow();
+            }
+        }
+
+        /**
+         * Visits the sub-images of the current row, adding the white padding, and moves to
+         * the next row.
+         */
+        private void visitNextRow() {
+            int i = nextTileRow;
+            if (i >= visitedRows) {
+                int top = Math.max(0, Math.min(i * size - heightPad, height));
+                int bottom = Math.max(0, Math.min(i * size + size - heightPad, height));
+                for (int j = 0; j < resolution; j++) {
+                    long paddingPixels = (long) size * size - (long) (bottom - top) * tileWidths[j];
+                    double sumGreyPixels = tileSums[j] + paddingPixels * ImageProcess.WHITE_GREY;
+                    visitor.visit(i, j, (sumGreyPixels / (size * size)) / 255);
+                }
+            }
+            Arrays.fill(tileSums, 0);
+            nextTileRow++;
+        }
+    }
+
+    /**
+     * Reduces the rows of the image as the reader reports them. If the reader reports
+     * anything but whole rows from top to bottom, the read is aborted.
+     */
+    private final class RowListener implements IIOReadUpdateListener {
+        private final StripReducer reducer;
+        /**
+         * The row expected next, or -1 once the read was aborted.
+         */
+        private int nextRow;
+
+        RowListener(StripReducer reducer) {
+            this.reducer = reducer;
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+                                int width, int height, int periodX, int periodY, int[] bands) {
+            if (nextRow < 0) {
+                return;
+            }
+            if (minX != 0 || width != StreamingImageProcess.this.width || periodX != 1 || periodY != 1 ||
+                    minY != nextRow || height > RING_ROWS) {
+                nextRow = -1;
+                source.abort();
+                return;
+            }
+            for (int y = minY; y < minY + height; y++) {
+                reducer.row(theImage, y);
+            }
+            nextRow = minY + height;
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass,
+                                int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass,
+                                         int minPass, int maxPass, int minX, int minY, int periodX,
+                                         int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY,
+                                    int width, int height, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+        }
+    }
+
+    /**
+     * A data buffer with the size of the whole image that stores only a period of its
+     * elements: element i is stored where element i % period is.
+     */
+    private static final class RingDataBuffer extends DataBuffer {
+        private final DataBuffer ring;
+        private final int period;
+
+        RingDataBuffer(DataBuffer ring, int period, int size) {
+            super(ring.getDataType(), size, ring.getNumBanks());
+            this.ring = ring;
+            this.period = period;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return ring.getElem(bank, i % period);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            ring.setElem(bank, i % period, val);
+        }
+
+        @Override
+        public float getElemFloat(int bank, int i) {
+            return ring.getElemFloat(bank, i % period);
+        }
+
+        @Override
+        public void setElemFloat(int bank, int i, float val) {
+            ring.setElemFloat(bank, i % period, val);
+        }
+
+        @Override
+        public double getElemDouble(int bank, int i) {
+            return ring.getElemDouble(bank, i % period);
+        }
+
+        @Override
+        public void setElemDouble(int bank, int i, double val) {
+            ring.setElemDouble(bank, i % period, val);
+        }
+    }
+}
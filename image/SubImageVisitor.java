@@ -0,0 +1,17 @@
+package image;
+
+/**
+ * A callback that receives the brightness of each sub-image of a processed image,
+ * without the sub-image pixels being copied.
+ */
+@FunctionalInterface
+public interface SubImageVisitor {
+    /**
+     * Visits one sub-image.
+     *
+     * @param row The row of the sub-image in the grid of sub-images.
+     * @param col The column of the sub-image in the grid of sub-images.
+     * @param brightness The brightness value of the sub-image.
+     */
+    void visit(int row, int col, double brightness);
+}
@@ -0,0 +1,153 @@
+package image;
+
+import java.util.Arrays;
+
+/**
+ * The grid of sub-images of an image of a given size at a given resolution, with the
+ * same padding and the same grid as ImageProcess, for code that works on single
+ * sub-images of a raster without building an ImageProcess for it.
+ */
+public class TileGrid {
+
+    private final int width;
+    private final int height;
+    private final int resolution;
+    private final int size;
+    private final int rows;
+    private final int heightPad;
+    private final int widthPad;
+
+    /**
+     * Constructs the grid of sub-images of an image.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param resolution The resolution of the sub-images.
+     */
+    public TileGrid(int width, int height, int resolution) {
+        int newHeight = ImageProcess.calcNewDimension(height);
+        int newWidth = ImageProcess.calcNewDimension(width);
+        this.width = width;
+        this.height = height;
+        this.resolution = resolution;
+        this.size = newHeight / resolution;
+        this.rows = newWidth / size;
+        this.heightPad = (newHeight - height) / 2;
+        this.widthPad = (newWidth - width) / 2;
+    }
+
+    /**
+     * Checks whether a resolution fits an image, as it must before a grid is constructed:
+     * at least one sub-image per row, and sub-images of at least one pixel.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param resolution The resolution of the sub-images.
+     * @return True if the resolution fits the image.
+     */
+    public static boolean fits(int width, int height, int resolution) {
+        return resolution >= 1 && resolution <= ImageProcess.calcNewDimension(width)
+                && resolution <= ImageProcess.calcNewDimension(height);
+    }
+
+    /**
+     * Gets the number of rows of sub-images.
+     *
+     * @return The number of rows of sub-images.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Gets the side length of each sub-image, in pixels.
+     *
+     * @return The size of the sub-images.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the row of sub-images that holds a row of pixels of the image.
+     *
+     * @param y The row of pixels.
+     * @return The row of sub-images, which may be outside the grid.
+     */
+    public int rowOf(int y) {
+        return (y + heightPad) / size;
+    }
+
+    /**
+     * Returns the column of sub-images that holds a column of pixels of the image.
+     *
+     * @param x The column of pixels.
+     * @return The column of sub-images, which may be outside the grid.
+     */
+    public int colOf(int x) {
+        return (x + widthPad) / size;
+    }
+
+    /**
+     * Checks whether a sub-image has the same pixels in two rasters of the image.
+     *
+     * @param first The first raster, in row-major order.
+     * @param second The second raster, in row-major order.
+     * @param row The row of the sub-image.
+     * @param col The column of the sub-image.
+     * @return True if every pixel of the sub-image is equal in both rasters.
+     */
+    public boolean tileEquals(int[] first, int[] second, int row, int col) {
+        int top = clamp(row * size - heightPad, height);
+        int bottom = clamp(row * size + size - heightPad, height);
+        int left = clamp(col * size - widthPad, width);
+        int right = clamp(col * size + size - widthPad, width);
+        for (int y = top; y < bottom; y++) {
+            int offset = y * width;
+            if (Arrays.mismatch(first, offset + left, offset + right,
+                    second, offset + left, offset + right) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the brightness of a sub-image from the pixels of a raster, as
+     * ImageProcess does up to floating-point rounding.
+     *
+     * @param raster The raster of the image, in row-major order.
+     * @param row The row of the sub-image.
+     * @param col The column of the sub-image.
+     * @param grey A scratch array of at least getSize() elements.
+     * @return The brightness of the sub-image.
+     */
+    public double tileBrightness(int[] raster, int row, int col, double[] grey) {
+        int top = clamp(row * size - heightPad, height);
+        int bottom = clamp(row * size + size - heightPad, height);
+        int left = clamp(col * size - widthPad, width);
+        int right = clamp(col * size + size - widthPad, width);
+        LuminanceKernel kernel = LuminanceKernel.getDefault();
+        double sumGreyPixels = 0;
+        for (int y = top; y < bottom; y++) {
+            kernel.greyValues(raster, y * width + left, right - left, grey);
+            for (int x = 0; x < right - left; x++) {
+                sumGreyPixels += grey[x];
+            }
+        }
+        long paddingPixels = (long) size * size - (long) (bottom - top) * (right - left);
+        sumGreyPixels += paddingPixels * ImageProcess.WHITE_GREY;
+        return (sumGreyPixels / (size * size)) / 255;
+    }
+
+    /**
+     * Clamps a coordinate of the image to the range [0, limit].
+     *
+     * @param value The coordinate to clamp.
+     * @param limit The upper bound.
+     * @return The clamped coordinate.
+     */
+    private static int clamp(int value, int limit) {
+        return Math.max(0, Math.min(value, limit));
+    }
+}
@@ -0,0 +1,277 @@
+package image_char_matching;
+
+/**
+ * An immutable index of characters sorted by their normalized brightness.
+ * The brightness keys are kept in a primitive array so a lookup is a binary search
+ * with no boxing.
+ */
+public final class CharBrightnessIndex {
+
+    /**
+     * The characters, sorted by normalized brightness and then by character value.
+     */
+    private final char[] chars;
+    /**
+     * The normalized brightness of each character in chars, in ascending order.
+     */
+    private final double[] brightness;
+    /**
+     * The minimum raw brightness of the indexed characters.
+     */
+    private final double minBrightness;
+    /**
+     * The maximum raw brightness of the indexed characters.
+     */
+    private final double maxBrightness;
+
+    /**
+     * Constructs an index from parallel arrays of characters and raw brightness values.
+     * The raw values are normalized to the range [0, 1] using their minimum and maximum.
+     *
+     * @param charset The characters to index.
+     * @param rawBrightness The raw brightness of each character in charset.
+     */
+    public CharBrightnessIndex(char[] charset, double[] rawBrightness) {
+        int size = charset.length;
+        double maxBrightness = 0;
+        double minBrightness = 255;
+        for (double raw : rawBrightness) {
+            if (raw > maxBrightness) {
+                maxBrightness = raw;
+            }
+            if (raw < minBrightness) {
+                minBrightness = raw;
+            }
+        }
+        this.minBrightness = minBrightness;
+        this.maxBrightness = maxBrightness;
+        this.chars = new char[size];
+        this.brightness = new double[size];
+        // Insertion sort by (brightness, char); charsets are small, and this keeps it primitive.
+        for (int i = 0; i < size; i++) {
+            char c = charset[i];
+            double value = normalize(rawBrightness[i], minBrightness, maxBrightness);
+            int j = i;
+            while (j > 0 && (brightness[j - 1] > value ||
+                    (brightness[j - 1] == value && chars[j - 1] > c))) {
+                chars[j] = chars[j - 1];
+                brightness[j] = brightness[j - 1];
+                j--;
+            }
+            chars[j] = c;
+            brightness[j] = value;
+        }
+    }
+
+    /**
+     * Constructs an index from already sorted and normalized arrays.
+     *
+     * @param chars The characters, sorted by normalized brightness and then by value.
+     * @param brightness The normalized brightness of each character.
+     * @param minBrightness The minimum raw brightness.
+     * @param maxBrightness The maximum raw brightness.
+     */
+    private CharBrightnessIndex(char[] chars, double[] brightness,
+                                double minBrightness, double maxBrightness) {
+        this.chars = chars;
+        this.brightness = brightness;
+        this.minBrightness = minBrightness;
+        this.maxBrightness = maxBrightness;
+    }
+
+    /**
+     * Returns an index that also holds the given character, without renormalizing the
+     * other characters. That is only possible while the minimum and maximum raw
+     * brightness stay the same.
+     *
+     * @param c The character to add; it must not be in the index.
+     * @param rawBrightness The raw brightness of the character.
+     * @return The new index, or null if the character changes the minimum or maximum
+     * brightness and the index must be rebuilt.
+     */
+    public CharBrightnessIndex withChar(char c, double rawBrightness) {
+        if (chars.length == 0 || rawBrightness < minBrightness || rawBrightness > maxBrightness) {
+            return null;
+        }
+        double value = normalize(rawBrightness, minBrightness, maxBrightness);
+        int position = 0;
+        while (position < chars.length && (brightness[position] < value ||
+                (brightness[position] == value && chars[position] < c))) {
+            position++;
+        }
+        char[] newChars = new char[chars.length + 1];
+        double[] newBrightness = new double[chars.length + 1];
+        System.arraycopy(chars, 0, newChars, 0, position);
+        System.arraycopy(brightness, 0, newBrightness, 0, position);
+        newChars[position] = c;
+        newBrightness[position] = value;
+        System.arraycopy(chars, position, newChars, position + 1, chars.length - position);
+        System.arraycopy(brightness, position, newBrightness, position + 1, chars.length - position);
+        return new CharBrightnessIndex(newChars, newBrightness, minBrightness, maxBrightness);
+    }
+
+    /**
+     * Returns an index without the given character, without renormalizing the other
+     * characters. That is only possible while the minimum and maximum raw brightness
+     * stay the same, that is, unless the character is the only one at either extreme.
+     *
+     * @param c The character to remove.
+     * @return The new index, or null if removing the character changes the minimum or
+     * maximum brightness and the index must be rebuilt.
+     */
+    public CharBrightnessIndex withoutChar(char c) {
+        int position = -1;
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] == c) {
+                position = i;
+                break;
+            }
+        }
+        if (position < 0) {
+            return this;
+        }
+        int last = chars.length - 1;
+        boolean onlyMin = position == 0 && (last == 0 || brightness[1] != brightness[0]);
+        boolean onlyMax = position == last && (last == 0 || brightness[last - 1] != brightness[last]);
+        if (onlyMin || onlyMax) {
+            return null;
+        }
+        char[] newChars = new char[last];
+        double[] newBrightness = new double[last];
+        System.arraycopy(chars, 0, newChars, 0, position);
+        System.arraycopy(brightness, 0, newBrightness, 0, position);
+        System.arraycopy(chars, position + 1, newChars, position, last - position);
+        System.arraycopy(brightness, position + 1, newBrightness, position, last - position);
+        return new CharBrightnessIndex(newChars, newBrightness, minBrightness, maxBrightness);
+    }
+
+    /**
+     * Normalizes a raw brightness value to the range [0, 1].
+     * A charset whose characters all share one brightness maps every character to 0.
+     *
+     * @param raw The raw brightness value.
+     * @param min The minimum raw brightness in the charset.
+     * @param max The maximum raw brightness in the charset.
+     * @return The normalized brightness.
+     */
+    private static double normalize(double raw, double min, double max) {
+        if (max == min) {
+            return 0;
+        }
+        return (raw - min) / (max - min);
+    }
+
+    /**
+     * Returns the minimum raw brightness of the indexed characters.
+     *
+     * @return The minimum raw brightness.
+     */
+    double getMinBrightness() {
+        return minBrightness;
+    }
+
+    /**
+     * Returns the maximum raw brightness of the indexed characters.
+     *
+     * @return The maximum raw brightness.
+     */
+    double getMaxBrightness() {
+        return maxBrightness;
+    }
+
+    /**
+     * Returns the number of indexed characters.
+     *
+     * @return The number of indexed characters.
+     */
+    public int size() {
+        return chars.length;
+    }
+
+    /**
+     * Finds the character whose normalized brightness is closest to the given brightness.
+     * Ties are broken in favor of the lowest character.
+     *
+     * @param target The brightness value to match.
+     * @return The closest character, or 0 if the index is empty.
+     */
+    public char closest(double target) {
+        if (chars.length == 0) {
+            return 0;
+        }
+        return chars[closestPosition(target)];
+    }
+
+    /**
+     * Finds the position of the character whose normalized brightness is closest to the
+     * given brightness, as closest does. The index must not be empty.
+     *
+     * @param target The brightness value to match.
+     * @return The position of the closest character.
+     */
+    int closestPosition(double target) {
+        // First position whose brightness is >= target.
+        int low = 0;
+        int high = chars.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (brightness[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == chars.length) {
+            return lowestOfRun(chars.length - 1);
+        }
+        if (low == 0) {
+            return 0;
+        }
+        // chars[low] already starts its run of equal brightness; the run below must be rewound.
+        int below = lowestOfRun(low - 1);
+        double diffAbove = Math.abs(brightness[low] - target);
+        double diffBelow = Math.abs(brightness[low - 1] - target);
+        if (diffAbove < diffBelow) {
+            return low;
+        }
+        if (diffBelow < diffAbove) {
+            return below;
+        }
+        return chars[low] < chars[below] ? low : below;
+    }
+
+    /**
+     * Returns the character at a position of the index.
+     *
+     * @param position The position.
+     * @return The character.
+     */
+    char charAt(int position) {
+        return chars[position];
+    }
+
+    /**
+     * Returns the normalized brightness at a position of the index.
+     *
+     * @param position The position.
+     * @return The normalized brightness.
+     */
+    double brightnessAt(int position) {
+        return brightness[position];
+    }
+
+    /**
+     * Returns the first position sharing the brightness of the given position, which
+     * holds the lowest character of that brightness.
+     *
+     * @param position A position in the index.
+     * @return The first position with the same normalized brightness.
+     */
+    private int lowestOfRun(int position) {
+        double value = brightness[position];
+        while (position > 0 && brightness[position - 1] == value) {
+            position--;
+        }
+        return position;
+    }
+}
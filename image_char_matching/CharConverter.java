@@ -33,6 +33,31 @@ public class CharConverter {
         return matrix;
     }
 
+    /**
+     * Renders a given character like convertToBoolArray, and packs the result row by row
+     * into longs, one bit per pixel, with bit (y * resolution + x) set for a true pixel.
+     */
+    public static long[] convertToBitmap(char c) {
+        boolean[][] matrix = convertToBoolArray(c);
+        long[] bitmap = new long[(DEFAULT_PIXEL_RESOLUTION * DEFAULT_PIXEL_RESOLUTION + 63) / 64];
+        for(int y = 0 ; y < DEFAULT_PIXEL_RESOLUTION ; y++) {
+            for(int x = 0 ; x < DEFAULT_PIXEL_RESOLUTION ; x++) {
+                if (matrix[y][x]) {
+                    int bit = y * DEFAULT_PIXEL_RESOLUTION + x;
+                    bitmap[bit / 64] |= 1L << (bit % 64);
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the name of the font the characters are rendered in.
+     */
+    public static String getFontName() {
+        return FONT_NAME;
+    }
+
     private static BufferedImage getBufferedImage(char c, String fontName, int pixelsPerRow) {
         String charStr = Character.toString(c);
         Font font = new Font(fontName, Font.PLAIN, pixelsPerRow);
@@ -0,0 +1,458 @@
+package image_char_matching;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A persistent cache of rendered glyphs, so a new process can match characters without
+ * rendering them through AWT again.
+ * The cache file holds, for each glyph, its coverage (the ratio of background pixels)
+ * and its bitmap packed into longs. The file is keyed by the font name, a fingerprint of
+ * the installed font files, the pixel resolution and a fingerprint of the JVM; a file
+ * with a different key is ignored and overwritten. The font fingerprint covers the path,
+ * size and modification time of every file in the font directories of the JVM and of the
+ * system, so installing, removing or updating a font, which may change the font AWT
+ * resolves the name to, invalidates the file. Building the key renders nothing, so a warm
+ * start does not load AWT fonts at all. The file is
+ * memory-mapped when it is opened, and written back, as a whole, when new glyphs have
+ * been added.
+ * A file is only used if it is a regular file owned by the current user, not writable by
+ * others, and its structure and records are consistent; anything else is ignored.
+ */
+public final class GlyphCache {
+
+    /**
+     * The system property that sets the path of the cache file. An empty value disables
+     * the persistent cache.
+     */
+    public static final String PATH_PROPERTY = "ascii_art.glyph_cache";
+    /**
+     * The magic number at the start of a cache file.
+     */
+    private static final int MAGIC = 0x474C5946;
+    /**
+     * The version of the cache file format.
+     */
+    private static final int VERSION = 2;
+    /**
+     * The largest key a valid cache file can carry, in bytes.
+     */
+    private static final int MAX_KEY_BYTES = 4096;
+    /**
+     * The size in bytes of the header of a cache file, without its key.
+     */
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    /**
+     * The number of longs in the bitmap of one glyph.
+     */
+    private static final int BITMAP_LONGS =
+            (CharConverter.DEFAULT_PIXEL_RESOLUTION * CharConverter.DEFAULT_PIXEL_RESOLUTION + 63) / 64;
+    /**
+     * The size in bytes of one glyph record: the char, its coverage and its bitmap.
+     */
+    private static final int RECORD_BYTES = Character.BYTES + Double.BYTES + BITMAP_LONGS * Long.BYTES;
+    /**
+     * The deepest directory level below a font directory whose files are fingerprinted.
+     */
+    private static final int MAX_FONT_DEPTH = 8;
+    /**
+     * The cache shared by all matchers of this process.
+     */
+    private static GlyphCache defaultCache;
+
+    /**
+     * The cache file, or null if the cache is not persisted.
+     */
+    private final Path path;
+    /**
+     * The key that a cache file must carry to be used, or null if the cache is not
+     * persisted.
+     */
+    private final String key;
+    /**
+     * The mapped records of the cache file, or null if no usable file was found.
+     */
+    private MappedByteBuffer mapped;
+    /**
+     * The position of each char's record in the mapped file, or -1 if it is not there.
+     */
+    private int[] mappedPositions;
+    /**
+     * Glyphs added since the file was mapped, in insertion order.
+     */
+    private final Map<Character, Glyph> added = new LinkedHashMap<>();
+
+    /**
+     * A glyph that has been rendered in this process.
+     */
+    private static final class Glyph {
+        private final double coverage;
+        private final long[] bitmap;
+
+        Glyph(double coverage, long[] bitmap) {
+            this.coverage = coverage;
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * Constructs a cache backed by the given file, mapping it if it exists and has a
+     * matching key.
+     *
+     * @param path The cache file, or null to keep the cache in memory only.
+     */
+    public GlyphCache(Path path) {
+        this.path = path;
+        this.key = path == null ? null : CharConverter.getFontName() + "/" +
+                fontFilesFingerprint() + "/" + CharConverter.DEFAULT_PIXEL_RESOLUTION + "/" +
+                System.getProperty("java.vendor") + "/" + System.getProperty("java.runtime.version") +
+                "/" + System.getProperty("os.name") + "/" + System.getProperty("os.version");
+        if (path != null) {
+            try {
+                map();
+            } catch (IOException | RuntimeException e) {
+                // An unreadable or corrupt file is treated as empty and rewritten on flush.
+                mapped = null;
+                mappedPositions = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the cache shared by all matchers of this process. Its file is set by the
+     * system property {@value #PATH_PROPERTY}, and defaults to a file in the cache
+     * directory of the current user: $XDG_CACHE_HOME/ascii_art, or ~/.cache/ascii_art.
+     *
+     * @return The shared glyph cache.
+     */
+    public static synchronized GlyphCache getDefault() {
+        if (defaultCache == null) {
+            String property = System.getProperty(PATH_PROPERTY);
+            Path path;
+            if (property == null) {
+                String cacheHome = System.getenv("XDG_CACHE_HOME");
+                Path base = cacheHome == null || cacheHome.isEmpty() ?
+                        Paths.get(System.getProperty("user.home"), ".cache") : Paths.get(cacheHome);
+                path = base.resolve("ascii_art").resolve("glyphs.bin");
+            } else if (property.isEmpty()) {
+                path = null;
+            } else {
+                path = Paths.get(property);
+            }
+            defaultCache = new GlyphCache(path);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Returns a fingerprint of the installed font files: their number and a hash of the
+     * path, size and modification time of each, combined so the order of the listing does
+     * not matter. Only file attributes are read.
+     *
+     * @return The fingerprint.
+     */
+    private static String fontFilesFingerprint() {
+        List<Path> directories = new ArrayList<>();
+        directories.add(Paths.get(System.getProperty("java.home"), "lib", "fonts"));
+        String home = System.getProperty("user.home");
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        if (os.startsWith("windows")) {
+            String windows = System.getenv("WINDIR");
+            directories.add(Paths.get(windows == null ? "C:\\Windows" : windows, "Fonts"));
+            String local = System.getenv("LOCALAPPDATA");
+            if (local != null) {
+                directories.add(Paths.get(local, "Microsoft", "Windows", "Fonts"));
+            }
+        } else if (os.startsWith("mac")) {
+            directories.add(Paths.get("/System/Library/Fonts"));
+            directories.add(Paths.get("/Library/Fonts"));
+            directories.add(Paths.get(home, "Library", "Fonts"));
+        } else {
+            directories.add(Paths.get("/usr/share/fonts"));
+            directories.add(Paths.get("/usr/local/share/fonts"));
+            directories.add(Paths.get(home, ".fonts"));
+            String dataHome = System.getenv("XDG_DATA_HOME");
+            directories.add(dataHome == null || dataHome.isEmpty() ?
+                    Paths.get(home, ".local", "share", "fonts") : Paths.get(dataHome, "fonts"));
+        }
+        long[] fingerprint = new long[2];
+        for (Path directory : directories) {
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(directory, MAX_FONT_DEPTH)) {
+                files.forEach(file -> {
+                    try {
+                        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        if (attributes.isRegularFile()) {
+                            fingerprint[0]++;
+                            fingerprint[1] += (file.toString().hashCode() * 31L + attributes.size()) * 31L
+                                    + attributes.lastModifiedTime().toMillis();
+                        }
+                    } catch (IOException e) {
+                        // A file that cannot be read is not a font AWT can load either.
+                    }
+                });
+            } catch (IOException | UncheckedIOException e) {
+                // A directory that cannot be listed counts as empty.
+            }
+        }
+        return "fonts:" + fingerprint[0] + ":" + Long.toHexString(fingerprint[1]);
+    }
+
+    /**
+     * Maps the cache file and indexes its records, if the file exists, is trusted, its
+     * header matches this cache and its records are consistent.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private void map() throws IOException {
+        if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) || !isTrusted(path)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                return;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return;
+            }
+            int keyLength = buffer.getInt();
+            if (keyLength < 0 || keyLength > MAX_KEY_BYTES || keyLength > buffer.remaining() - Integer.BYTES) {
+                return;
+            }
+            byte[] fileKey = new byte[keyLength];
+            buffer.get(fileKey);
+            if (!key.equals(new String(fileKey, StandardCharsets.UTF_8))) {
+                return;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > Character.MAX_VALUE + 1 ||
+                    (long) count * RECORD_BYTES != buffer.remaining()) {
+                return;
+            }
+            int[] positions = new int[Character.MAX_VALUE + 1];
+            Arrays.fill(positions, -1);
+            for (int i = 0; i < count; i++) {
+                int position = buffer.position();
+                char c = buffer.getChar(position);
+                if (positions[c] >= 0 || !isConsistent(buffer, position)) {
+                    return;
+                }
+                positions[c] = position;
+                buffer.position(position + RECORD_BYTES);
+            }
+            mapped = buffer;
+            mappedPositions = positions;
+        }
+    }
+
+    /**
+     * Checks that a cache file can be trusted: on file systems with POSIX permissions, it
+     * must be owned by the current user and not be writable by anyone else.
+     *
+     * @param file The cache file.
+     * @return True if the file can be used.
+     * @throws IOException If the attributes of the file cannot be read.
+     */
+    private static boolean isTrusted(Path file) throws IOException {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return true;
+        }
+        UserPrincipal user = file.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!user.equals(Files.getOwner(file, LinkOption.NOFOLLOW_LINKS))) {
+            return false;
+        }
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file, LinkOption.NOFOLLOW_LINKS);
+        return !permissions.contains(PosixFilePermission.GROUP_WRITE) &&
+                !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+    }
+
+    /**
+     * Checks that a record is consistent: its coverage must be the ratio of set bits of
+     * its bitmap.
+     *
+     * @param buffer The mapped file.
+     * @param position The position of the record.
+     * @return True if the record is consistent.
+     */
+    private static boolean isConsistent(ByteBuffer buffer, int position) {
+        int bits = 0;
+        int bitmapPosition = position + Character.BYTES + Double.BYTES;
+        for (int i = 0; i < BITMAP_LONGS; i++) {
+            bits += Long.bitCount(buffer.getLong(bitmapPosition + i * Long.BYTES));
+        }
+        double pixels = CharConverter.DEFAULT_PIXEL_RESOLUTION * CharConverter.DEFAULT_PIXEL_RESOLUTION;
+        return buffer.getDouble(position + Character.BYTES) == bits / pixels;
+    }
+
+    /**
+     * Returns the coverage of a glyph.
+     *
+     * @param c The character of the glyph.
+     * @return The ratio of background pixels of the glyph, or NaN if it is not cached.
+     */
+    public synchronized double getCoverage(char c) {
+        Glyph glyph = added.get(c);
+        if (glyph != null) {
+            return glyph.coverage;
+        }
+        if (mappedPositions == null || mappedPositions[c] < 0) {
+            return Double.NaN;
+        }
+        return mapped.getDouble(mappedPositions[c] + Character.BYTES);
+    }
+
+    /**
+     * Returns the bitmap of a glyph, packed row by row into longs, one bit per pixel.
+     * A set bit is a background pixel.
+     *
+     * @param c The character of the glyph.
+     * @return A copy of the bitmap of the glyph, or null if it is not cached.
+     */
+    public synchronized long[] getBitmap(char c) {
+        Glyph glyph = added.get(c);
+        if (glyph != null) {
+            return glyph.bitmap.clone();
+        }
+        if (mappedPositions == null || mappedPositions[c] < 0) {
+            return null;
+        }
+        long[] bitmap = new long[BITMAP_LONGS];
+        int position = mappedPositions[c] + Character.BYTES + Double.BYTES;
+        for (int i = 0; i < BITMAP_LONGS; i++) {
+            bitmap[i] = mapped.getLong(position + i * Long.BYTES);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a newly rendered glyph to the cache. It is persisted by the next flush.
+     *
+     * @param c The character of the glyph.
+     * @param coverage The ratio of background pixels of the glyph.
+     * @param bitmap The bitmap of the glyph, packed row by row into longs.
+     */
+    public synchronized void put(char c, double coverage, long[] bitmap) {
+        if (mappedPositions != null && mappedPositions[c] >= 0) {
+            return;
+        }
+        added.put(c, new Glyph(coverage, Arrays.copyOf(bitmap, BITMAP_LONGS)));
+    }
+
+    /**
+     * Writes the cache file back if glyphs were added since it was last written.
+     * The file is replaced atomically where the file system allows it, so a concurrent
+     * reader sees the old or the new file. A directory created for the file is only
+     * accessible to the current user. Failures are ignored, and the temporary file is
+     * removed; the glyphs are rendered again by a later process.
+     */
+    public synchronized void flush() {
+        if (path == null || added.isEmpty()) {
+            return;
+        }
+        Path temp = null;
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createDirectories(parent,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(parent);
+            }
+            temp = Files.createTempFile(parent, "glyphs", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                writeTo(out);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+            added.clear();
+            map();
+        } catch (IOException | RuntimeException e) {
+            // Keep the glyphs in memory; they are written again on the next flush.
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // Nothing more can be done about a temporary file that cannot be removed.
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the header, the mapped records and the added records to a stream.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream cannot be written.
+     */
+    private void writeTo(DataOutputStream out) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        int mappedCount = 0;
+        if (mappedPositions != null) {
+            for (int position : mappedPositions) {
+                if (position >= 0) {
+                    mappedCount++;
+                }
+            }
+        }
+        out.writeInt(mappedCount + added.size());
+        if (mappedPositions != null) {
+            byte[] record = new byte[RECORD_BYTES];
+            for (int position : mappedPositions) {
+                if (position >= 0) {
+                    ByteBuffer view = mapped.duplicate();
+                    view.position(position);
+                    view.get(record);
+                    out.write(record);
+                }
+            }
+        }
+        for (Map.Entry<Character, Glyph> entry : added.entrySet()) {
+            out.writeChar(entry.getKey());
+            out.writeDouble(entry.getValue().coverage);
+            for (long word : entry.getValue().bitmap) {
+                out.writeLong(word);
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,195 @@
+package image_char_matching;
+
+/**
+ * An immutable index of the shapes of a charset's glyphs, for structural matching.
+ * Each glyph is reduced to an 8x8 bitmap packed into a long, bit (y * 8 + x) set for a
+ * background pixel. A sub-image is reduced to the same form by ordered dithering of its
+ * 8x8 cell brightness, and matched to the glyph at the least Hamming distance.
+ * Glyphs are grouped by popcount: the distance between two bitmaps is at least the
+ * difference of their popcounts, so the search visits groups in order of that
+ * difference and stops once it cannot beat the best match so far.
+ */
+final class GlyphShapeIndex {
+
+    /**
+     * The side length of the bitmaps, in cells.
+     */
+    static final int GRID = 8;
+    /**
+     * The number of cells of a bitmap.
+     */
+    private static final int CELLS = GRID * GRID;
+    /**
+     * The thresholds of ordered dithering, an 8x8 Bayer matrix scaled to (0, 1).
+     */
+    private static final double[] DITHER = makeDither();
+
+    /**
+     * The brightness index the shapes were built for.
+     */
+    private final CharBrightnessIndex index;
+    /**
+     * The characters, sorted by popcount of their shape and then by character value.
+     */
+    private final char[] chars;
+    /**
+     * The shape of each character in chars.
+     */
+    private final long[] shapes;
+    /**
+     * The position in chars of the first character of each popcount, and chars.length at
+     * index CELLS + 1.
+     */
+    private final int[] groupStart = new int[CELLS + 2];
+    /**
+     * The minimum raw brightness of the charset.
+     */
+    private final double minBrightness;
+    /**
+     * The range of raw brightness of the charset.
+     */
+    private final double brightnessRange;
+
+    /**
+     * Constructs a shape index over the characters of a brightness index.
+     *
+     * @param index The brightness index.
+     * @param shapeByPosition The shape of the character at each position of the index.
+     */
+    GlyphShapeIndex(CharBrightnessIndex index, long[] shapeByPosition) {
+        this.index = index;
+        this.minBrightness = index.getMinBrightness();
+        this.brightnessRange = index.getMaxBrightness() - index.getMinBrightness();
+        int size = index.size();
+        this.chars = new char[size];
+        this.shapes = new long[size];
+        int[] groupSize = new int[CELLS + 1];
+        for (int i = 0; i < size; i++) {
+            groupSize[Long.bitCount(shapeByPosition[i])]++;
+        }
+        for (int p = 0; p <= CELLS; p++) {
+            groupStart[p + 1] = groupStart[p] + groupSize[p];
+        }
+        int[] next = groupStart.clone();
+        for (int i = 0; i < size; i++) {
+            int slot = next[Long.bitCount(shapeByPosition[i])]++;
+            // Insertion sort within the popcount group, so ties favor the lowest character.
+            char c = index.charAt(i);
+            int group = groupStart[Long.bitCount(shapeByPosition[i])];
+            while (slot > group && chars[slot - 1] > c) {
+                chars[slot] = chars[slot - 1];
+                shapes[slot] = shapes[slot - 1];
+                slot--;
+            }
+            chars[slot] = c;
+            shapes[slot] = shapeByPosition[i];
+        }
+    }
+
+    /**
+     * Finds the character whose shape is closest to a sub-image. Ties are broken in favor
+     * of the lowest character.
+     *
+     * @param cells The brightness of the 8x8 cells of the sub-image, in row-major order.
+     * @return The closest character, or 0 if the index is empty.
+     */
+    char closest(double[] cells) {
+        if (chars.length == 0) {
+            return 0;
+        }
+        long tile = tileShape(cells);
+        int popcount = Long.bitCount(tile);
+        int best = Integer.MAX_VALUE;
+        char bestChar = 0;
+        for (int d = 0; d <= CELLS && d <= best; d++) {
+            for (int side = d == 0 ? 1 : 0; side < 2; side++) {
+                int p = side == 0 ? popcount - d : popcount + d;
+                if (p < 0 || p > CELLS) {
+                    continue;
+                }
+                for (int i = groupStart[p]; i < groupStart[p + 1]; i++) {
+                    int distance = Long.bitCount(tile ^ shapes[i]);
+                    if (distance < best || (distance == best && chars[i] < bestChar)) {
+                        best = distance;
+                        bestChar = chars[i];
+                    }
+                }
+            }
+        }
+        return bestChar;
+    }
+
+    /**
+     * Reduces the cell brightness of a sub-image to a bitmap. Each cell's brightness is
+     * mapped onto the charset's range of raw brightness, as exact matching does, and
+     * compared with its threshold of ordered dithering.
+     *
+     * @param cells The brightness of the 8x8 cells of the sub-image, in row-major order.
+     * @return The bitmap of the sub-image.
+     */
+    long tileShape(double[] cells) {
+        long shape = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if (minBrightness + cells[i] * brightnessRange > DITHER[i]) {
+                shape |= 1L << i;
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Returns the brightness index the shapes were built for.
+     *
+     * @return The brightness index.
+     */
+    CharBrightnessIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Downsamples a glyph bitmap of CharConverter.DEFAULT_PIXEL_RESOLUTION pixels per side
+     * to 8x8. A cell is set when at least half of its pixels are.
+     *
+     * @param bitmap The glyph bitmap, packed row by row into longs.
+     * @return The 8x8 shape of the glyph.
+     */
+    static long downsample(long[] bitmap) {
+        int side = CharConverter.DEFAULT_PIXEL_RESOLUTION;
+        int scale = side / GRID;
+        long shape = 0;
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                int set = 0;
+                for (int dy = 0; dy < scale; dy++) {
+                    for (int dx = 0; dx < scale; dx++) {
+                        int bit = (y * scale + dy) * side + x * scale + dx;
+                        set += (int) (bitmap[bit / 64] >>> (bit % 64)) & 1;
+                    }
+                }
+                if (2 * set >= scale * scale) {
+                    shape |= 1L << (y * GRID + x);
+                }
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * Builds the thresholds of 8x8 ordered dithering.
+     *
+     * @return The thresholds, in row-major order.
+     */
+    private static double[] makeDither() {
+        double[] dither = new double[CELLS];
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                int rank = 0;
+                for (int bit = 0; bit < 3; bit++) {
+                    rank = (rank << 2) | ((((x ^ y) >> bit) & 1) << 1) | ((y >> bit) & 1);
+                }
+                dither[y * GRID + x] = (rank + 0.5) / CELLS;
+            }
+        }
+        return dither;
+    }
+}
@@ -0,0 +1,121 @@
+package image_char_matching;
+
+/**
+ * A lookup table that maps brightness to characters with one array access, by splitting
+ * the range [0, 1] into equal buckets and matching every brightness in a bucket to the
+ * character closest to the bucket's center.
+ * The table records how much farther from the brightness its characters can be than
+ * the characters of exact matching.
+ */
+public final class QuantizedCharTable {
+
+    /**
+     * The index the table was built from.
+     */
+    private final CharBrightnessIndex index;
+    /**
+     * The character of each bucket.
+     */
+    private final char[] table;
+    /**
+     * The largest extra brightness error of the table over exact matching.
+     */
+    private final double maxDeviation;
+
+    /**
+     * Builds the table of a brightness index.
+     *
+     * @param index The brightness index; it must not be empty.
+     * @param buckets The number of buckets.
+     */
+    QuantizedCharTable(CharBrightnessIndex index, int buckets) {
+        this.index = index;
+        this.table = new char[buckets];
+        // Exact matching changes character only at the midpoints between distinct
+        // brightness values, so the deviation, which is piecewise linear, peaks at those
+        // points, at the brightness values themselves, or at the ends of a bucket.
+        int size = index.size();
+        double[] breakpoints = new double[2 * size - 1];
+        for (int i = 0; i < size; i++) {
+            breakpoints[2 * i] = index.brightnessAt(i);
+            if (i + 1 < size) {
+                breakpoints[2 * i + 1] = (index.brightnessAt(i) + index.brightnessAt(i + 1)) / 2;
+            }
+        }
+        double worst = 0;
+        int next = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            double low = (double) bucket / buckets;
+            double high = (double) (bucket + 1) / buckets;
+            int position = index.closestPosition((bucket + 0.5) / buckets);
+            table[bucket] = index.charAt(position);
+            double value = index.brightnessAt(position);
+            worst = Math.max(worst, deviation(value, low));
+            worst = Math.max(worst, deviation(value, high));
+            while (next < breakpoints.length && breakpoints[next] <= low) {
+                next++;
+            }
+            for (int k = next; k < breakpoints.length && breakpoints[k] < high; k++) {
+                worst = Math.max(worst, deviation(value, breakpoints[k]));
+            }
+        }
+        this.maxDeviation = worst;
+    }
+
+    /**
+     * Calculates how much farther a bucket's character is from a brightness than the
+     * character exact matching picks for it.
+     *
+     * @param value The normalized brightness of the bucket's character.
+     * @param target The brightness.
+     * @return The extra brightness error, at least 0.
+     */
+    private double deviation(double value, double target) {
+        double exact = index.brightnessAt(index.closestPosition(target));
+        return Math.abs(value - target) - Math.abs(exact - target);
+    }
+
+    /**
+     * Returns the index the table was built from.
+     *
+     * @return The brightness index.
+     */
+    CharBrightnessIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the number of buckets of the table.
+     *
+     * @return The number of buckets.
+     */
+    public int getBuckets() {
+        return table.length;
+    }
+
+    /**
+     * Returns the largest amount by which a character from this table can be farther from
+     * the matched brightness than the character exact matching would pick.
+     *
+     * @return The maximal deviation from exact matching, in normalized brightness.
+     */
+    public double getMaxDeviation() {
+        return maxDeviation;
+    }
+
+    /**
+     * Matches a brightness to a character.
+     *
+     * @param brightness The brightness value, between 0 and 1.
+     * @return The character of the brightness's bucket.
+     */
+    public char lookup(double brightness) {
+        int bucket = (int) (brightness * table.length);
+        if (bucket < 0) {
+            bucket = 0;
+        } else if (bucket >= table.length) {
+            bucket = table.length - 1;
+        }
+        return table[bucket];
+    }
+}
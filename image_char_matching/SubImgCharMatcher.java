@@ -1,7 +1,8 @@
 package image_char_matching;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class provides functionality to match ASCII characters to image brightness.
@@ -13,13 +14,44 @@ public class SubImgCharMatcher {
      */
     public static final int DEFAULT_RESOLUTION = 16 * 16;
     /**
-     * The list of characters used for matching.
+     * The side length, in cells, of the sub-image cells that structural matching compares.
      */
-    private ArrayList<Character> charArray;
+    public static final int SHAPE_GRID = GlyphShapeIndex.GRID;
     /**
-     * A map to store the brightness values of ASCII characters.
+     * The characters used for matching, one bit per char value.
      */
-    private static final HashMap<Character, Double> asciiBrightMap = new HashMap<>();
+    private final BitSet charArray = new BitSet();
+    /**
+     * A map to store the brightness values of ASCII characters, shared by all matchers.
+     * Each value is computed once, even under concurrent first use, and reads are lock-free.
+     */
+    private static final ConcurrentHashMap<Character, Double> asciiBrightMap = new ConcurrentHashMap<>();
+    /**
+     * A map to store the 8x8 shapes of ASCII characters, shared by all matchers.
+     */
+    private static final ConcurrentHashMap<Character, Long> asciiShapeMap = new ConcurrentHashMap<>();
+    /**
+     * The brightness index of the current character set, or null if it must be rebuilt.
+     * Single-char changes update it in place unless they move the minimum or maximum
+     * brightness; range changes drop it.
+     */
+    private volatile CharBrightnessIndex brightnessIndex;
+    /**
+     * The number of buckets of quantized matching, or 0 for exact matching.
+     */
+    private volatile int quantization;
+    /**
+     * The lookup table of quantized matching, or null if it has not been built.
+     */
+    private volatile QuantizedCharTable quantizedTable;
+    /**
+     * Whether sub-images are matched by shape rather than by brightness alone.
+     */
+    private volatile boolean structural;
+    /**
+     * The shape index of structural matching, or null if it has not been built.
+     */
+    private volatile GlyphShapeIndex shapeIndex;
 
     /**
      * Constructs a SubImgCharMatcher with the given character set.
@@ -27,9 +59,8 @@ public class SubImgCharMatcher {
      * @param charset The character set used for matching.
      */
     public SubImgCharMatcher(char[] charset) {
-        this.charArray = new ArrayList<>();
         for (char c : charset) {
-            this.charArray.add(c);
+            this.charArray.set(c);
         }
     }
 
@@ -40,84 +71,244 @@ public class SubImgCharMatcher {
      * @return The closest ASCII character.
      */
     public char getCharByImageBrightness(double brightness) {
-        char closestChar = 0;
-        double diff = 1;
-        HashMap<Character, Double> newBrightnessMap = calcNormalizeBrightness(this.charArray);
-        for (char c : this.charArray) {
-            double charBrightness = newBrightnessMap.get(c);
-            if (Math.abs(charBrightness - brightness) <= diff) {
-                if (Math.abs(charBrightness - brightness) == diff) {
-                    if (c < closestChar) {
-                        closestChar = c;
-                    }
-                } else {
-                    closestChar = c;
-                    diff = Math.abs(charBrightness - brightness);
-                }
+        if (quantization == 0) {
+            return getIndex().closest(brightness);
+        }
+        QuantizedCharTable table = getQuantizedTable();
+        return table == null ? 0 : table.lookup(brightness);
+    }
+
+    /**
+     * Matches a run of brightness values to their closest ASCII characters, as
+     * getCharByImageBrightness does for each one. The index or lookup table of the
+     * current mode is resolved once for the whole run, and nothing is allocated unless it
+     * must be rebuilt.
+     *
+     * @param brightness The brightness values.
+     * @param from The position of the first value to match.
+     * @param chars The array that receives the characters.
+     * @param offset The position of the first character in chars.
+     * @param count The number of values to match.
+     */
+    public void getCharsByImageBrightness(double[] brightness, int from, char[] chars, int offset,
+                                          int count) {
+        if (quantization == 0) {
+            CharBrightnessIndex index = getIndex();
+            for (int i = 0; i < count; i++) {
+                chars[offset + i] = index.closest(brightness[from + i]);
             }
+            return;
+        }
+        QuantizedCharTable table = getQuantizedTable();
+        for (int i = 0; i < count; i++) {
+            chars[offset + i] = table == null ? 0 : table.lookup(brightness[from + i]);
+        }
+    }
+
+    /**
+     * Matches a sub-image to the character whose glyph has the closest shape, by the
+     * Hamming distance between their 8x8 bitmaps.
+     *
+     * @param cells The brightness of the SHAPE_GRID x SHAPE_GRID cells of the sub-image,
+     *              in row-major order.
+     * @return The closest ASCII character.
+     */
+    public char getCharByImageCells(double[] cells) {
+        return getShapeIndex().closest(cells);
+    }
+
+    /**
+     * Sets whether sub-images are matched by shape, with getCharByImageCells, rather than
+     * by their brightness alone. Structural matching is off by default.
+     *
+     * @param structural True for structural matching.
+     */
+    public void setStructural(boolean structural) {
+        this.structural = structural;
+    }
+
+    /**
+     * Returns whether sub-images are matched by shape.
+     *
+     * @return True for structural matching.
+     */
+    public boolean isStructural() {
+        return structural;
+    }
+
+    /**
+     * Sets the matching mode. Exact matching, the default, finds the closest character by
+     * a search of the charset; quantized matching looks the character up in a table of
+     * equal brightness buckets, built from the charset whenever it changes.
+     *
+     * @param buckets The number of buckets of quantized matching, or 0 for exact matching.
+     */
+    public void setQuantization(int buckets) {
+        if (buckets < 0) {
+            throw new IllegalArgumentException("Negative number of buckets: " + buckets);
         }
-        return closestChar;
+        this.quantization = buckets;
     }
 
     /**
-     * Calculates and returns a map of characters to normalized brightness values.
+     * Returns the matching mode.
      *
-     * @param charArray The list of characters to calculate brightness for.
-     * @return A map of characters to normalized brightness values.
+     * @return The number of buckets of quantized matching, or 0 for exact matching.
      */
-    private HashMap<Character, Double> calcNormalizeBrightness(ArrayList<Character> charArray) {
-        double maxBrightness = 0;
-        double minBrightness = 255;
-        for (char c : charArray) {
-            if (!asciiBrightMap.containsKey(c)){
-                calcNormalizeNumber(c);
+    public int getQuantization() {
+        return quantization;
+    }
+
+    /**
+     * Returns the largest amount by which a quantized match can be farther from the
+     * matched brightness than the exact match.
+     *
+     * @return The maximal deviation from exact matching, in normalized brightness, or 0 in
+     * exact matching mode.
+     */
+    public double getQuantizationError() {
+        if (quantization == 0) {
+            return 0;
+        }
+        QuantizedCharTable table = getQuantizedTable();
+        return table == null ? 0 : table.getMaxDeviation();
+    }
+
+    /**
+     * Returns the lookup table of the current charset and number of buckets, rebuilding it
+     * if either changed since it was last built.
+     *
+     * @return The lookup table, or null if the charset is empty.
+     */
+    private QuantizedCharTable getQuantizedTable() {
+        CharBrightnessIndex index = getIndex();
+        int buckets = this.quantization;
+        QuantizedCharTable table = this.quantizedTable;
+        if (table == null || table.getIndex() != index || table.getBuckets() != buckets) {
+            if (index.size() == 0) {
+                return null;
             }
-            double charBrightness =  asciiBrightMap.get(c);
-            if (charBrightness > maxBrightness) {
-                maxBrightness = charBrightness;
+            table = new QuantizedCharTable(index, buckets);
+            this.quantizedTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * Returns the shape index of the current charset, rebuilding it if the charset
+     * changed since it was last built.
+     *
+     * @return The shape index.
+     */
+    private GlyphShapeIndex getShapeIndex() {
+        CharBrightnessIndex index = getIndex();
+        GlyphShapeIndex shapes = this.shapeIndex;
+        if (shapes == null || shapes.getIndex() != index) {
+            long[] shapeByPosition = new long[index.size()];
+            for (int i = 0; i < shapeByPosition.length; i++) {
+                shapeByPosition[i] = getShape(index.charAt(i));
             }
-            if (charBrightness < minBrightness) {
-                minBrightness = charBrightness;
+            shapes = new GlyphShapeIndex(index, shapeByPosition);
+            this.shapeIndex = shapes;
+        }
+        return shapes;
+    }
+
+    /**
+     * Returns the 8x8 shape of a character, downsampling its glyph bitmap on first use.
+     *
+     * @param c The character.
+     * @return The shape of the character.
+     */
+    private static long getShape(char c) {
+        Long shape = asciiShapeMap.get(c);
+        if (shape == null) {
+            shape = asciiShapeMap.computeIfAbsent(c, key -> {
+                // Computing the brightness puts the glyph in the glyph cache.
+                getRawBrightness(key);
+                long[] bitmap = GlyphCache.getDefault().getBitmap(key);
+                if (bitmap == null) {
+                    bitmap = CharConverter.convertToBitmap(key);
+                }
+                return GlyphShapeIndex.downsample(bitmap);
+            });
+        }
+        return shape;
+    }
+
+    /**
+     * Returns the brightness index of the current character set, rebuilding it if the
+     * character set has changed since it was last built. Safe to call from several
+     * render threads at once; the index is built by one of them.
+     *
+     * @return The brightness index of the current character set.
+     */
+    private CharBrightnessIndex getIndex() {
+        CharBrightnessIndex index = this.brightnessIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = this.brightnessIndex;
+                if (index == null) {
+                    index = buildIndex();
+                    this.brightnessIndex = index;
+                }
             }
         }
-        return convertToNewBrightness(maxBrightness, minBrightness);
+        return index;
     }
 
     /**
-     * Converts the brightness values to a new scale between 0 and 1.
+     * Builds a brightness index of the current character set.
      *
-     * @param maxBrightness The maximum brightness value.
-     * @param minBrightness The minimum brightness value.
-     * @return A map of characters to normalized brightness values.
+     * @return A new brightness index of the current character set.
      */
-    private HashMap<Character, Double> convertToNewBrightness(double maxBrightness,
-                                                              double minBrightness) {
-        HashMap<Character, Double> newBrightnessMap = new HashMap<>();
-        for (char c : charArray) {
-            double charBrightness =  asciiBrightMap.get(c);
-            double newBrightness =
-                    (charBrightness - minBrightness)/(maxBrightness - minBrightness);
-            newBrightnessMap.put(c, newBrightness);
+    private CharBrightnessIndex buildIndex() {
+        char[] charset = new char[charArray.cardinality()];
+        double[] rawBrightness = new double[charset.length];
+        int i = 0;
+        for (int c = charArray.nextSetBit(0); c >= 0; c = charArray.nextSetBit(c + 1)) {
+            charset[i] = (char) c;
+            rawBrightness[i] = getRawBrightness((char) c);
+            i++;
         }
-        return newBrightnessMap;
+        GlyphCache.getDefault().flush();
+        return new CharBrightnessIndex(charset, rawBrightness);
     }
 
     /**
-     * Calculates and stores the brightness value for a given character.
+     * Returns the brightness value of a character, calculating it on first use.
+     *
+     * @param c The character.
+     * @return The brightness value of the character.
+     */
+    private static double getRawBrightness(char c) {
+        Double brightness = asciiBrightMap.get(c);
+        if (brightness == null) {
+            brightness = asciiBrightMap.computeIfAbsent(c, SubImgCharMatcher::calcNormalizeNumber);
+        }
+        return brightness;
+    }
+
+    /**
+     * Calculates the brightness value for a given character. The value is read
+     * from the glyph cache, and the glyph is only rendered if the cache does not have it.
      *
      * @param c The character to calculate brightness for.
+     * @return The brightness value of the character.
      */
-    private void calcNormalizeNumber(char c) {
-        double numOfTrue = 0;
-        boolean[][] boolArray = CharConverter.convertToBoolArray(c);
-        for (int i = 0; i < boolArray.length ; i++){
-            for (int j = 0; j < boolArray[i].length ; j++) {
-                if (boolArray[i][j]) {
-                    numOfTrue+=1;
-                }
+    private static double calcNormalizeNumber(char c) {
+        GlyphCache glyphCache = GlyphCache.getDefault();
+        double brightness = glyphCache.getCoverage(c);
+        if (Double.isNaN(brightness)) {
+            long[] bitmap = CharConverter.convertToBitmap(c);
+            double numOfTrue = 0;
+            for (long word : bitmap) {
+                numOfTrue += Long.bitCount(word);
             }
+            brightness = numOfTrue / DEFAULT_RESOLUTION;
+            glyphCache.put(c, brightness, bitmap);
         }
-        asciiBrightMap.put(c,numOfTrue / DEFAULT_RESOLUTION);
+        return brightness;
     }
 
     /**
@@ -126,10 +317,16 @@ public class SubImgCharMatcher {
      * @param c The character to add.
      */
     public void addChar(char c) {
-        if (charArray.contains(c)) {
+        if (charArray.get(c)) {
            return;
         }
-        charArray.add(c);
+        charArray.set(c);
+        CharBrightnessIndex index = brightnessIndex;
+        if (index != null) {
+            brightnessIndex = index.withChar(c, getRawBrightness(c));
+            // A newly rendered glyph is persisted here, since the index is not rebuilt.
+            GlyphCache.getDefault().flush();
+        }
     }
 
     /**
@@ -138,19 +335,127 @@ public class SubImgCharMatcher {
      * @param c The character to remove.
      */
     public void removeChar(char c) {
-        if (!charArray.contains(c)) {
+        if (!charArray.get(c)) {
             return;
         }
-        charArray.remove(Character.valueOf(c));
+        charArray.clear(c);
+        CharBrightnessIndex index = brightnessIndex;
+        if (index != null) {
+            brightnessIndex = index.withoutChar(c);
+        }
+    }
+
+    /**
+     * Adds a range of characters to the character set. The brightness index is rebuilt
+     * once, on the next match.
+     *
+     * @param from The first character to add.
+     * @param to The last character to add (inclusive).
+     */
+    public void addRange(char from, char to) {
+        charArray.set(from, to + 1);
+        brightnessIndex = null;
+    }
+
+    /**
+     * Removes a range of characters from the character set. The brightness index is
+     * rebuilt once, on the next match.
+     *
+     * @param from The first character to remove.
+     * @param to The last character to remove (inclusive).
+     */
+    public void removeRange(char from, char to) {
+        charArray.clear(from, to + 1);
+        brightnessIndex = null;
+    }
+
+    /**
+     * Parses a character spec, the argument of the shell's add and remove commands: all
+     * for the printable ASCII characters, space, a single printable character, or a range
+     * of them such as a-z, in either order.
+     *
+     * @param spec The character spec.
+     * @return The first and last characters of the spec (inclusive), or null if it is
+     * not a valid spec.
+     */
+    public static char[] parseCharSpec(String spec) {
+        if (spec.equals("all")) {
+            return new char[]{' ', '~'};
+        }
+        if (spec.equals("space")) {
+            return new char[]{' ', ' '};
+        }
+        if (spec.length() == 1 && isPrintable(spec.charAt(0))) {
+            return new char[]{spec.charAt(0), spec.charAt(0)};
+        }
+        if (spec.length() == 3 && spec.charAt(1) == '-' &&
+                isPrintable(spec.charAt(0)) && isPrintable(spec.charAt(2))) {
+            return new char[]{(char) Math.min(spec.charAt(0), spec.charAt(2)),
+                    (char) Math.max(spec.charAt(0), spec.charAt(2))};
+        }
+        return null;
     }
 
     /**
-     * Returns the character set.
+     * Adds the characters of a character spec to the character set; see parseCharSpec.
      *
-     * @return The character set.
+     * @param spec The character spec.
+     * @return False if the spec is not valid, in which case nothing is added.
+     */
+    public boolean addChars(String spec) {
+        char[] range = parseCharSpec(spec);
+        if (range == null) {
+            return false;
+        }
+        if (range[0] == range[1]) {
+            addChar(range[0]);
+        } else {
+            addRange(range[0], range[1]);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the characters of a character spec from the character set; see
+     * parseCharSpec.
+     *
+     * @param spec The character spec.
+     * @return False if the spec is not valid, in which case nothing is removed.
+     */
+    public boolean removeChars(String spec) {
+        char[] range = parseCharSpec(spec);
+        if (range == null) {
+            return false;
+        }
+        if (range[0] == range[1]) {
+            removeChar(range[0]);
+        } else {
+            removeRange(range[0], range[1]);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a character is printable ASCII, from space to tilde.
+     *
+     * @param c The character.
+     * @return True if the character is printable ASCII.
+     */
+    private static boolean isPrintable(char c) {
+        return c > 31 && c < 127;
+    }
+
+    /**
+     * Returns the character set, in ascending order.
+     *
+     * @return A copy of the character set.
      */
     public ArrayList<Character> getter() {
-        return charArray;
+        ArrayList<Character> chars = new ArrayList<>(charArray.cardinality());
+        for (int c = charArray.nextSetBit(0); c >= 0; c = charArray.nextSetBit(c + 1)) {
+            chars.add((char) c);
+        }
+        return chars;
     }
 
 }
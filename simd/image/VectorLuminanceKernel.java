@@ -0,0 +1,64 @@
+package image;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SIMD luminance kernel. Each step loads as many pixels as the preferred double
+ * vector has lanes, unpacks their channels with shifts and masks, widens them to double
+ * and computes the weighted sum in the same order as the scalar kernel. The tail of a run
+ * that does not fill a vector is converted one pixel at a time.
+ * It lives in the separate source root simd, so the rest of the tree compiles with a bare
+ * javac; it is built by the simd profile of the pom, or by hand with
+ * javac --add-modules jdk.incubator.vector -cp CLASSES -d CLASSES simd/image/*.java
+ * and is loaded reflectively, at run time with --add-modules jdk.incubator.vector.
+ */
+final class VectorLuminanceKernel implements LuminanceKernel {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    /**
+     * The int species with as many lanes as DOUBLES.
+     */
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.length() * Integer.SIZE));
+
+    private static final double RED_WEIGHT = 0.2126;
+    private static final double GREEN_WEIGHT = 0.7152;
+    private static final double BLUE_WEIGHT = 0.0722;
+
+    @Override
+    public void greyValues(int[] pixels, int offset, int length, double[] grey) {
+        int lanes = DOUBLES.length();
+        int bound = length - length % lanes;
+        int i = 0;
+        for (; i < bound; i += lanes) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, offset + i);
+            DoubleVector red = toDouble(pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF));
+            DoubleVector green = toDouble(pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF));
+            DoubleVector blue = toDouble(pixel.and(0xFF));
+            red.mul(RED_WEIGHT).add(green.mul(GREEN_WEIGHT)).add(blue.mul(BLUE_WEIGHT))
+                    .intoArray(grey, i);
+        }
+        for (; i < length; i++) {
+            grey[i] = ImageProcess.greyValue(pixels[offset + i]);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector";
+    }
+
+    /**
+     * Widens the lanes of an int vector to double.
+     *
+     * @param channel The int vector.
+     * @return The double vector with the same lane values.
+     */
+    private static DoubleVector toDouble(IntVector channel) {
+        return (DoubleVector) channel.convertShape(VectorOperators.I2D, DOUBLES, 0);
+    }
+}